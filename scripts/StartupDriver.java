@@ -0,0 +1,45 @@
+/*
+ * Copyright 2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import de.loisel.Chip8;
+import de.loisel.FrameBuffer;
+import de.loisel.Keyboard;
+import de.loisel.Program;
+
+/**
+ * Times setting up a chip and running a fixed number of lockstep frames. It
+ * only uses API that is older than the headless entry point, so
+ * startup-bench.sh compiles it against the current build and against a
+ * baseline build alike.
+ * <p>
+ * usage: StartupDriver rom frames clockSpeed
+ * prints the setup and run time in microseconds to stderr, the chip may log to stdout
+ */
+public class StartupDriver {
+    public static void main(String[] args) {
+        long start = System.nanoTime();
+        Chip8 chip = new Chip8(new Program(args[0]), new FrameBuffer(), new Keyboard());
+        chip.setClockSpeed(Long.parseLong(args[2]));
+        long ready = System.nanoTime();
+
+        int frames = Integer.parseInt(args[1]);
+        for (int i = 0; i < frames; i++)
+            chip.runFrame();
+        long end = System.nanoTime();
+
+        System.err.println((ready - start) / 1000 + " " + (end - ready) / 1000);
+    }
+}
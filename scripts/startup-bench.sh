@@ -0,0 +1,76 @@
+#!/usr/bin/env bash
+#
+# Measures the wall time of short headless runs, with and without the AppCDS
+# archive built by the appcds profile:
+#
+#   mvn -B package -Pappcds -Dcds.training.rom=<rom>
+#   scripts/startup-bench.sh <rom> [runs] [frames] [baseline jar]
+#
+# With a baseline jar, for example built from an older revision with
+#
+#   git worktree add /tmp/baseline <revision> && (cd /tmp/baseline && mvn -B package)
+#
+# StartupDriver.java is compiled against both builds and times chip setup and
+# the frames at 500 Hz and 100 kHz for a before/after comparison. The driver
+# only needs the Chip8 lockstep API, so the baseline does not have to contain
+# de.loisel.Headless.
+#
+set -euo pipefail
+
+ROM=${1:?usage: startup-bench.sh <rom> [runs] [frames] [baseline jar]}
+RUNS=${2:-10}
+FRAMES=${3:-600}
+BASELINE=${4:-}
+SCRIPTS=$(cd "$(dirname "$0")" && pwd)
+# AppCDS only maps the archive when the class path matches the training run exactly
+TARGET=$(cd "$SCRIPTS/../target" && pwd)
+JAR=$(ls "$TARGET"/chip8-*.jar | head -n 1)
+ARCHIVE=$TARGET/chip8.jsa
+
+run() {
+    local jar=$1
+    shift
+    local total=0
+    for ((i = 0; i < RUNS; i++)); do
+        local start=$(date +%s%N)
+        java "$@" -cp "$jar" de.loisel.Headless "$ROM" --frames="$FRAMES" > /dev/null
+        local end=$(date +%s%N)
+        total=$((total + (end - start) / 1000000))
+    done
+    echo $((total / RUNS))
+}
+
+# prints the average wall, setup and run time of the driver against a build
+drive() {
+    local classes=$1 jar=$2 speed=$3
+    local wall=0 setup=0 running=0
+    for ((i = 0; i < RUNS; i++)); do
+        local start=$(date +%s%N)
+        local times=$(java -cp "$classes:$jar" StartupDriver "$ROM" "$FRAMES" "$speed" 2>&1 > /dev/null | tail -n 1)
+        local end=$(date +%s%N)
+        wall=$((wall + (end - start) / 1000000))
+        setup=$((setup + ${times% *}))
+        running=$((running + ${times#* }))
+    done
+    echo "wall $((wall / RUNS)) ms, setup $((setup / RUNS / 1000)) ms, $FRAMES frames $((running / RUNS / 1000)) ms"
+}
+
+echo "default:        $(run "$JAR") ms"
+echo "no class share: $(run "$JAR" -Xshare:off) ms"
+if [ -f "$ARCHIVE" ]; then
+    echo "appcds:         $(run "$JAR" -XX:SharedArchiveFile="$ARCHIVE") ms"
+else
+    echo "appcds:         no archive, build with -Pappcds first"
+fi
+
+if [ -n "$BASELINE" ]; then
+    DRIVER=$(mktemp -d)
+    trap 'rm -rf "$DRIVER"' EXIT
+    mkdir "$DRIVER/current" "$DRIVER/baseline"
+    javac -cp "$JAR" -d "$DRIVER/current" "$SCRIPTS/StartupDriver.java"
+    javac -cp "$BASELINE" -d "$DRIVER/baseline" "$SCRIPTS/StartupDriver.java"
+    for speed in 500 100000; do
+        echo "baseline at $speed Hz: $(drive "$DRIVER/baseline" "$BASELINE" $speed)"
+        echo "current at $speed Hz:  $(drive "$DRIVER/current" "$JAR" $speed)"
+    done
+fi
@@ -17,10 +17,23 @@
 package de.loisel;
 
 import processing.core.PApplet;
+import processing.core.PImage;
+
+import java.util.concurrent.CountDownLatch;
 
 public class App extends PApplet {
     private static FrameBuffer frameBuffer;
     private static Keyboard keyboard;
+    private static Chip8 chip;
+    private static boolean lockstep = false;
+    private static boolean fusion = false;
+    private static Upscaler.Filter filter = null;
+    private static String recordPath = null;
+    private static String governorBounds = null;
+    private static ClockGovernor governor = null;
+
+    private static final CountDownLatch ready = new CountDownLatch(1);
+    private static final LatencyProbe latency = new LatencyProbe();
 
     private static final int WIDTH = 1920;
     private static final int HEIGHT = 960;
@@ -32,6 +45,10 @@ public class App extends PApplet {
     boolean[][] oldImage;
     int [][] pixelFade;
 
+    Upscaler upscaler;
+    PImage screen;
+    long[] rows = new long[32];
+
     @Override
     public void settings() {
         size(WIDTH, HEIGHT);
@@ -42,10 +59,18 @@ public class App extends PApplet {
         frameRate(60);
         noStroke();
         background(0);
+        if (filter != null) {
+            upscaler = new Upscaler(WIDTH, HEIGHT, filter, FrameBuffer.ON_COLOR, FrameBuffer.OFF_COLOR);
+            screen = createImage(WIDTH, HEIGHT, RGB);
+        }
+        ready.countDown();
     }
 
     @Override
     public void keyPressed() {
+        byte chipKey = Keyboard.mapKey(key);
+        if (chipKey < 16)
+            latency.inputReceived(chipKey);
         setKey(key, true);
     }
 
@@ -55,26 +80,7 @@ public class App extends PApplet {
     }
 
     private static void setKey(char k, boolean state) {
-        byte key;
-        switch (k) {
-            case '1' -> key = 0x1;
-            case '2' -> key = 0x2;
-            case '3' -> key = 0x3;
-            case '4' -> key = 0xC;
-            case 'q' -> key = 0x4;
-            case 'w' -> key = 0x5;
-            case 'e' -> key = 0x6;
-            case 'r' -> key = 0xD;
-            case 'a' -> key = 0x7;
-            case 's' -> key = 0x8;
-            case 'd' -> key = 0x9;
-            case 'f' -> key = 0xE;
-            case 'y' -> key = 0xA;
-            case 'x' -> key = 0x0;
-            case 'c' -> key = 0xB;
-            case 'v' -> key = 0xF;
-            default -> key = (byte) 16;
-        }
+        byte key = Keyboard.mapKey(k);
         if (key < 16)
             if (state)
                 keyboard.set(key);
@@ -84,6 +90,29 @@ public class App extends PApplet {
 
     @Override
     public void draw() {
+        if (lockstep)
+            chip.runFrame();
+
+        if (upscaler == null)
+            drawQuads();
+        else
+            drawUpscaled();
+
+        latency.framePresented();
+        countFPS();
+    }
+
+    private void drawUpscaled() {
+        frameBuffer.copyPublished(rows);
+
+        int[] pixels = upscaler.upscale(rows);
+        screen.loadPixels();
+        System.arraycopy(pixels, 0, screen.pixels, 0, pixels.length);
+        screen.updatePixels();
+        image(screen, 0, 0);
+    }
+
+    private void drawQuads() {
         boolean[][] image = frameBuffer.copyBuffer();
         if(pixelFade == null)
             pixelFade = new int[image.length][image[0].length];
@@ -113,8 +142,6 @@ public class App extends PApplet {
             }
         }
         oldImage = image;
-
-        countFPS();
     }
 
     private void fillQuad(int x, int y) {
@@ -129,7 +156,10 @@ public class App extends PApplet {
     private void countFPS() {
         fCounter++;
         if(System.currentTimeMillis() > lastCount + 1000) {
-            System.out.println("FPS: " + fCounter);
+            String status = "FPS: " + fCounter + ", " + latency.report();
+            if (governor != null)
+                status += ", " + governor.getClockSpeed() + " Hz" + (governor.isBehind() ? " (host behind)" : "");
+            System.out.println(status);
             fCounter = 0;
             lastCount = System.currentTimeMillis();
         }
@@ -141,32 +171,78 @@ public class App extends PApplet {
             throw new RuntimeException("No arguments found. Cannot load program!");
         }
 
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--lockstep"))
+                lockstep = true;
+            else if (args[i].equals("--fuse"))
+                fusion = true;
+            else if (args[i].equals("--scale2x"))
+                filter = Upscaler.Filter.SCALE2X;
+            else if (args[i].equals("--scale3x"))
+                filter = Upscaler.Filter.SCALE3X;
+            else if (args[i].startsWith("--record="))
+                recordPath = args[i].substring("--record=".length());
+            else if (args[i].equals("--governor"))
+                governorBounds = Headless.DEFAULT_GOVERNOR_BOUNDS;
+            else if (args[i].startsWith("--governor="))
+                governorBounds = args[i].substring("--governor=".length());
+            else
+                throw new RuntimeException("Unknown argument: " + args[i]);
+        }
+
+        // superinstructions are only dispatched by runFrame(), the free running loop ignores them
+        if (fusion && !lockstep)
+            throw new RuntimeException("--fuse requires --lockstep");
+
         frameBuffer = new FrameBuffer();
         Program program = new Program(args[0]);
         keyboard = new Keyboard();
+        keyboard.setLatencyProbe(latency);
+        frameBuffer.addListener(latency);
+
+        chip = new Chip8(program, frameBuffer, keyboard);
+        chip.setFusion(fusion);
+        if (fusion)
+            Runtime.getRuntime().addShutdownHook(new Thread(
+                    () -> System.out.println(chip.getSuperinstructions().report()), "Superinstructions Shutdown"));
+
+        if (governorBounds != null) {
+            SpeedProfiles profiles = new SpeedProfiles();
+            String hash = program.hash();
+            governor = ClockGovernor.parse(governorBounds, profiles.getSpeed(hash, 500));
+            chip.setGovernor(governor);
+            Runtime.getRuntime().addShutdownHook(new Thread(
+                    () -> profiles.setSpeed(hash, governor.getClockSpeed()), "Speed Profile Shutdown"));
+        }
 
-        Chip8 chip = new Chip8(program, frameBuffer, keyboard);
+        if (recordPath != null) {
+            FrameRecorder recorder = FrameRecorder.forPath(recordPath, 10,
+                    filter == null ? Upscaler.Filter.NEAREST : filter, FrameBuffer.ON_COLOR, FrameBuffer.OFF_COLOR);
+            frameBuffer.addListener(recorder);
+            recorder.start();
+            // processing ends the vm with System.exit, finish the file on the way out
+            Runtime.getRuntime().addShutdownHook(new Thread(recorder::stop, "Recorder Shutdown"));
+        }
 
         ChipAudio audio = new ChipAudio(chip);
 
         String[] appletArgs = new String[] { "Chip8 by loisel" };
         PApplet.runSketch(appletArgs, new App());
 
-        sleep(1000); // wait a little for processing
+        try {
+            ready.await(); // wait for processing to finish setup()
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
 
-        Thread chipThread = new Thread(chip, "Chip Thread");
+        // in lockstep mode draw() runs the chip on the animation thread
+        if (!lockstep) {
+            Thread chipThread = new Thread(chip, "Chip Thread");
+            chipThread.start();
+        }
         Thread audioThread = new Thread(audio, "Audio Thread");
-        chipThread.start();
         audioThread.start();
 
     }
-
-    public static void sleep(int millis) {
-        try {
-            Thread.sleep(millis);
-        }
-        catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
 }
@@ -16,12 +16,21 @@
 
 package de.loisel;
 
+import java.util.Arrays;
 import java.util.Random;
 
 public class Chip8 implements Runnable{
     Random rand;
+    boolean verbose = true;
     private boolean isRunning;
+    private boolean isHalted;
     private long clockSpeed;
+    private double cycleBudget;
+    private ClockGovernor governor;
+    private Superinstructions superinstructions;
+    private int waitCycles;
+    private long cycleCount;
+    private long lastTimerPoll;
     private int emptyInst;
 
     private final byte[] vReg;
@@ -41,21 +50,46 @@ public class Chip8 implements Runnable{
         this.memory = new Memory();
         this.stack = new Stack();
 
-        this.programCounter = 0x200;
-        this.indexReg = 0;
-        this.delayTimer = 0;
-        this.soundTimer = 0;
         this.vReg = new byte[16];
 
         this.isRunning = false;
         this.clockSpeed = 500;
-        this.emptyInst = 0;
+        this.governor = null;
+        this.superinstructions = null;
         this.rand = new Random();
 
+        reset(program);
+    }
+
+    /**
+     * puts the machine back into its power on state and loads program,
+     * the clock speed, governor and fusion setting are kept
+     */
+    public void reset(Program program) {
+        boolean fusion = superinstructions != null;
+        setFusion(false);
+
+        this.programCounter = 0x200;
+        this.indexReg = 0;
+        this.delayTimer = 0;
+        this.soundTimer = 0;
+        Arrays.fill(vReg, (byte) 0);
+        stack.reset();
+        memory.reset();
+        frameBuffer.clearBuffer();
+
+        this.isHalted = false;
+        this.cycleBudget = 0;
+        this.waitCycles = 0;
+        this.cycleCount = 0;
+        this.lastTimerPoll = 0;
+        this.emptyInst = 0;
+
         byte[] rawProgram = program.getProgram();
         for (int i = programCounter; i < (programCounter + rawProgram.length); i++) {
             memory.write((short)i, rawProgram[i - programCounter]);
         }
+        setFusion(fusion);
     }
 
     public synchronized boolean isSound() {
@@ -89,6 +123,73 @@ public class Chip8 implements Runnable{
         this.clockSpeed = clockSpeed;
     }
 
+    /**
+     * lets the governor choose the clock speed from now on, null goes back to the fixed clock speed
+     */
+    public void setGovernor(ClockGovernor governor) {
+        this.governor = governor;
+        if (governor != null)
+            this.clockSpeed = governor.getClockSpeed();
+    }
+
+    /**
+     * Runs one 60 Hz frame in lockstep with the caller: executes the cycles
+     * that fit into a frame at the current clock speed and ticks the timers
+     * once. Used instead of {@link #run()} when the render thread drives the
+     * chip, so no second thread is needed.
+     * returns the number of executed cycles
+     */
+    public int runFrame() {
+        // the governor sets clockSpeed at the end of every frame
+        cycleBudget += clockSpeed / 60D;
+        int cycles = (int) cycleBudget;
+        cycleBudget -= cycles;
+
+        int executed = 0;
+        while (executed < cycles && !isHalted)
+            executed += step(cycles - executed);
+        endFrame(executed);
+        return executed;
+    }
+
+    /**
+     * executes one dispatch, a superinstruction if one fits into maxCycles,
+     * otherwise a single instruction. returns the number of executed instructions
+     */
+    int step(int maxCycles) {
+        int fused = superinstructions == null ? 0 : superinstruction(maxCycles);
+        if (fused == 0) {
+            cycle();
+            return 1;
+        }
+        return fused;
+    }
+
+    /**
+     * Fuses hot instruction sequences in {@link #runFrame()}. The free running
+     * loop times every instruction on its own and never fuses.
+     */
+    public void setFusion(boolean enabled) {
+        if (enabled && superinstructions == null) {
+            superinstructions = new Superinstructions();
+            memory.setWriteListener(superinstructions::invalidate);
+        } else if (!enabled) {
+            superinstructions = null;
+            memory.setWriteListener(null);
+        }
+    }
+
+    /**
+     * returns the counters of the fused instructions, null if fusion is off
+     */
+    public Superinstructions getSuperinstructions() {
+        return superinstructions;
+    }
+
+    public boolean isHalted() {
+        return isHalted;
+    }
+
     private void runProgram() {
         this.loop();
     }
@@ -99,9 +200,10 @@ public class Chip8 implements Runnable{
         isRunning = true;
 
         /* debug info */
-        long cycleCount = 0;
+        long loopCycles = 0;
         long startTime = System.currentTimeMillis();
         /* debug info */
+        long frameStartCount = 0;
 
         while(isRunning) {
             long currentTime = System.nanoTime();
@@ -109,20 +211,45 @@ public class Chip8 implements Runnable{
             if(currentTime - lastCycle >= (1e9F/clockSpeed)) {
                 cycle();
                 lastCycle = currentTime;
-                cycleCount++;
+                loopCycles++;
             }
 
             if(currentTime - lastTimerUpdate >= (1e9F/60L)) {
-                if(delayTimer > 0)
-                    delayTimer--;
-                if(soundTimer > 0)
-                    soundTimer --;
+                endFrame((int) (loopCycles - frameStartCount));
+                frameStartCount = loopCycles;
                 lastTimerUpdate = currentTime;
             }
         }
 
         System.out.println("Program ran " + (System.currentTimeMillis() - startTime) + " milliseconds");
-        System.out.println("Executed " + cycleCount + " cycles");
+        System.out.println("Executed " + loopCycles + " cycles");
+    }
+
+    void endFrame(int executed) {
+        updateTimers();
+        frameBuffer.publish();
+        if (governor != null) {
+            governor.frameDone(executed, waitCycles);
+            clockSpeed = governor.getClockSpeed();
+        }
+        waitCycles = 0;
+    }
+
+    /**
+     * a program polling the running delay timer again within a few cycles is
+     * spinning in a wait loop, count the whole loop as waiting for the governor
+     */
+    private void countTimerPoll() {
+        long sinceLastPoll = cycleCount - lastTimerPoll;
+        waitCycles += sinceLastPoll <= 8 ? (int) sinceLastPoll : 1;
+        lastTimerPoll = cycleCount;
+    }
+
+    private void updateTimers() {
+        if(delayTimer > 0)
+            delayTimer--;
+        if(soundTimer > 0)
+            soundTimer --;
     }
 
     private void cycle() {
@@ -131,142 +258,139 @@ public class Chip8 implements Runnable{
         incrementPC();
         byte b2 = memory.fetch(programCounter);
         incrementPC();
-        short instruction = (short) ((b1 << 8) | (b2 & 0xFF));
-        String instString = Integer.toHexString(instruction & 0xffff).toUpperCase();
-        if (instString.length() == 1) instString = "000" + instString;
-        if (instString.length() == 2) instString = "00" + instString;
-        if (instString.length() == 3) instString = "0" + instString;
+        final int instruction = ((b1 & 0xFF) << 8) | (b2 & 0xFF);
+        cycleCount++;
 
         // Decode and Execute
-        final byte regX = hexCharToByte('0', instString.charAt(1));
-        final byte regY = hexCharToByte('0', instString.charAt(2));
-        final byte kk = hexCharToByte(instString.charAt(2), instString.charAt(3));
-        final short nnn = (short) setNibble(instruction, 0, 3);
-
-        switch(instString.toUpperCase().charAt(0)) {
-            case '0':
-                switch (instString.substring(1)) {
-                    case "000" -> emptyInstCounter(programCounter);                                       // 0000 - Empty
-                    case "0E0" -> frameBuffer.clearBuffer();                                // 00E0 - CLS
-                    case "0EE" -> programCounter = stack.pop();                             // 00EE - RET
+        // plain bit operations only, the interpreter is hot from the very first frame
+        final int regX = (instruction >>> 8) & 0xF;
+        final int regY = (instruction >>> 4) & 0xF;
+        final byte kk = (byte) instruction;
+        final short nnn = (short) (instruction & 0xFFF);
+
+        switch(instruction >>> 12) {
+            case 0x0:
+                switch (instruction) {
+                    case 0x0000 -> emptyInstCounter(programCounter);                        // 0000 - Empty
+                    case 0x00E0 -> frameBuffer.clearBuffer();                               // 00E0 - CLS
+                    case 0x00EE -> programCounter = stack.pop();                            // 00EE - RET
                     default ->
-                            System.out.println(
-                                    "Instruction under 0xxx not found: " + instString);
+                            log(
+                                    "Instruction under 0xxx not found: " + toHex(instruction));
                 }
                 break;
-            case '1':                                                                       // 1nnn - JP addr
+            case 0x1:                                                                       // 1nnn - JP addr
                 programCounter = nnn;
                 break;
-            case '2':                                                                       // 2nnn - CALL addr
+            case 0x2:                                                                       // 2nnn - CALL addr
                 stack.push(programCounter);
                 programCounter = nnn;
                 break;
-            case '3':                                                                       // 3xkk - SE Vx, byte
+            case 0x3:                                                                       // 3xkk - SE Vx, byte
                 if (vReg[regX] == kk) {incrementPC(); incrementPC();}
                 break;
-            case '4':                                                                       // 4xkk - SNE Vx, byte
+            case 0x4:                                                                       // 4xkk - SNE Vx, byte
                 if (vReg[regX] != kk) {incrementPC(); incrementPC();}
                 break;
-            case '5':                                                                       // 5xy0 - SE Vx, Vy
+            case 0x5:                                                                       // 5xy0 - SE Vx, Vy
                 if (vReg[regX] == vReg[regY]) {incrementPC(); incrementPC();}
                 break;
-            case '6':                                                                       // 6xkk - LD Vx, byte
+            case 0x6:                                                                       // 6xkk - LD Vx, byte
                 vReg[regX] = kk;
                 break;
-            case '7':                                                                       // 7xkk - ADD Vx, byte
+            case 0x7:                                                                       // 7xkk - ADD Vx, byte
                 vReg[regX] += kk;
                 break;
-            case '8':
-                switch (instString.toUpperCase().charAt(3)) {
-                    case '0':                                                               // 8xy0 - LD Vx, Vy
+            case 0x8:
+                switch (instruction & 0xF) {
+                    case 0x0:                                                               // 8xy0 - LD Vx, Vy
                         vReg[regX] = vReg[regY];
                         break;
-                    case '1':                                                               // 8xy1 - OR Vx, Vy
+                    case 0x1:                                                               // 8xy1 - OR Vx, Vy
                         vReg[regX] |= vReg[regY];
                         break;
-                    case '2':                                                               // 8xy2 - AND Vx, Vy
+                    case 0x2:                                                               // 8xy2 - AND Vx, Vy
                         vReg[regX] &= vReg[regY];
                         break;
-                    case '3':                                                               // 8xy3 - XOR Vx, Vy
+                    case 0x3:                                                               // 8xy3 - XOR Vx, Vy
                         vReg[regX] ^= vReg[regY];
                         break;
-                    case '4':                                                               // 8xy4 - ADD Vx, Vy
+                    case 0x4:                                                               // 8xy4 - ADD Vx, Vy
                         if (Byte.toUnsignedInt(vReg[regX]) + Byte.toUnsignedInt(vReg[regY]) > 255)
                             vReg[15] = 1;
                         else
                             vReg[15] = 0;
                         vReg[regX] = (byte) (Byte.toUnsignedInt(vReg[regX]) + Byte.toUnsignedInt(vReg[regY]));
                         break;
-                    case '5':                                                               // 8xy5 - SUB Vx, Vy
+                    case 0x5:                                                               // 8xy5 - SUB Vx, Vy
                         if (Byte.toUnsignedInt(vReg[regX]) < Byte.toUnsignedInt(vReg[regY]))
                             vReg[15] = 0;
                         else
                             vReg[15] = 1;
                         vReg[regX] = (byte)(vReg[regX] - vReg[regY]);
                         break;
-                    case '6':                                                               // 8xy6 - SHR Vx {, Vy}
+                    case 0x6:                                                               // 8xy6 - SHR Vx {, Vy}
                         vReg[15] = ((vReg[regX] & 1) == 0) ? 0 : (byte)1;
                         vReg[regX] >>= 1;
                         break;
-                    case '7':                                                               // 8xy7 - SUBN Vx, Vy
+                    case 0x7:                                                               // 8xy7 - SUBN Vx, Vy
                         if (Byte.toUnsignedInt(vReg[regY]) < Byte.toUnsignedInt(vReg[regX]))
                             vReg[15] = 0;
                         else
                             vReg[15] = 1;
                         vReg[regX] = (byte)(vReg[regY] - vReg[regX]);
                         break;
-                    case 'E':                                                               // 8xyE - SHL Vx {, Vy}
+                    case 0xE:                                                               // 8xyE - SHL Vx {, Vy}
                         vReg[15] = (Byte.toUnsignedInt(vReg[regX]) < 128) ? 0 : (byte)1;
                         vReg[regX] <<= 1;
                         break;
                     default:
-                        System.out.println(
-                                "Instruction under 8xyx not found: " + instString);
+                        log(
+                                "Instruction under 8xyx not found: " + toHex(instruction));
                         break;
                 }
                 break;
-            case '9':                                                                       // 9xy0 - SNE Vx, Vy
+            case 0x9:                                                                       // 9xy0 - SNE Vx, Vy
                 if (vReg[regX] != vReg[regY]) { incrementPC(); incrementPC(); }
                 break;
-            case 'A':                                                                       // Annn - LD I, addr
+            case 0xA:                                                                       // Annn - LD I, addr
                 indexReg = nnn;
                 break;
-            case 'B':                                                                       // Bnnn - JP V0, addr
+            case 0xB:                                                                       // Bnnn - JP V0, addr
                 programCounter = (short)(nnn + vReg[0]);
                 break;
-            case 'C':                                                                       // Cxkk - RND Vx, byte
+            case 0xC:                                                                       // Cxkk - RND Vx, byte
                 vReg[regX] = (byte)(kk & (byte)rand.nextInt(0, 256));
                 break;
-            case 'D':                                                                       // Dxyn - DRW Vx, Vy, nibble
-                byte[] sprite = new byte[hexCharToByte('0', instString.charAt(3))];
-                for (int i = 0; i < sprite.length; i++) {
-                    sprite[i] = memory.fetch((short)(indexReg + i));
-                }
-                boolean collision = frameBuffer.setSprite(sprite, vReg[regX], vReg[regY]);
-                if(collision) vReg[15] = 1;
-                else vReg[15] = 0;
+            case 0xD:                                                                       // Dxyn - DRW Vx, Vy, nibble
+                draw(regX, regY, instruction & 0xF);
                 break;
-            case 'E':
-                switch (instString.toUpperCase().charAt(3)) {
-                    case 'E':                                                               // Ex9E - SKP Vx
+            case 0xE:
+                switch (instruction & 0xF) {
+                    case 0xE:                                                               // Ex9E - SKP Vx
                         if(keyboard.isDown(vReg[regX])) { incrementPC(); incrementPC(); }
                         break;
-                    case '1':                                                               // ExA1 - SKNP Vx
+                    case 0x1:                                                               // ExA1 - SKNP Vx
                         if(!keyboard.isDown(vReg[regX])) { incrementPC(); incrementPC(); }
                         break;
                     default:
-                        System.out.println(
-                                "Instruction under ExNN not found: " + instString);
+                        log(
+                                "Instruction under ExNN not found: " + toHex(instruction));
                         break;
                 }
                 break;
-            case 'F':
+            case 0xF:
                 switch (kk) {
                     case 0x07:                                                              // Fx07 - LD Vx, DT
                         vReg[regX] = (byte) delayTimer;
+                        if (delayTimer > 0) countTimerPoll();
                         break;
                     case 0x0A:                                                              // Fx0A - LD Vx, K
-                        do { vReg[regX] = keyboard.getNexKey(); } while(vReg[regX] == (byte) 0xFF);
+                        // repeat the instruction until a key is down instead of blocking,
+                        // so the timers keep running and lockstep mode can't stall
+                        byte nextKey = keyboard.getNexKey();
+                        if (nextKey == (byte) 0xFF) { decrementPC(); decrementPC(); waitCycles++; }
+                        else vReg[regX] = nextKey;
                         break;
                     case 0x15:                                                              // Fx15 - LD DT, Vx
                         delayTimer = Byte.toUnsignedInt(vReg[regX]);
@@ -298,22 +422,126 @@ public class Chip8 implements Runnable{
                             vReg[i] = memory.fetch((short) (indexReg + i));
                         break;
                     default:
-                        System.out.println(
-                                "Instruction under FxNN not found: " + instString);
+                        log(
+                                "Instruction under FxNN not found: " + toHex(instruction));
                         break;
                 }
                 break;
             default:
-                System.out.println("Instruction not found: " + instString);
+                log("Instruction not found: " + toHex(instruction));
+        }
+    }
+
+    /**
+     * returns a description of the first difference in the machine state, null if there is none
+     */
+    String difference(Chip8 other) {
+        if (programCounter != other.programCounter)
+            return "PC " + programCounter + " != " + other.programCounter;
+        if (indexReg != other.indexReg)
+            return "I " + indexReg + " != " + other.indexReg;
+        int reg = Arrays.mismatch(vReg, other.vReg);
+        if (reg >= 0)
+            return "V" + Integer.toHexString(reg).toUpperCase() + " " + vReg[reg] + " != " + other.vReg[reg];
+        if (delayTimer != other.delayTimer)
+            return "DT " + delayTimer + " != " + other.delayTimer;
+        if (soundTimer != other.soundTimer)
+            return "ST " + soundTimer + " != " + other.soundTimer;
+        if (!stack.sameAs(other.stack))
+            return "stack differs";
+        int address = memory.mismatch(other.memory);
+        if (address >= 0)
+            return "memory differs at " + address;
+        int row = frameBuffer.mismatch(other.frameBuffer);
+        if (row >= 0)
+            return "frame buffer differs in row " + row;
+        if (isHalted != other.isHalted)
+            return "halted " + isHalted + " != " + other.isHalted;
+        return null;
+    }
+
+    private void log(String message) {
+        if (verbose)
+            System.out.println(message);
+    }
+
+    private void draw(int regX, int regY, int rows) {
+        boolean collision = memory.drawSprite(frameBuffer, indexReg, rows, vReg[regX], vReg[regY]);
+        if(collision) vReg[15] = 1;
+        else vReg[15] = 0;
+    }
+
+    /**
+     * Runs the superinstruction fused at the program counter, if there is one
+     * and its longest path fits into maxCycles. Every fused sequence does
+     * exactly what cycle() does for its instructions one after another.
+     * returns the number of executed instructions, 0 if nothing was executed
+     */
+    private int superinstruction(int maxCycles) {
+        final int pc = programCounter;
+        if (pc < 0 || pc >= Memory.MEMORY_SIZE)
+            return 0;
+
+        Superinstructions.Kind kind = superinstructions.kind(pc);
+        if (kind == Superinstructions.Kind.NONE) {
+            superinstructions.profile(pc, memory);
+            return 0;
+        }
+        if (kind.length > maxCycles)
+            return 0;
+
+        final int i1 = superinstructions.first(pc);
+        final int i2 = superinstructions.second(pc);
+        final int executed;
+        switch (kind) {
+            case LOAD_DRAW -> {                                                             // Annn, Dxyn
+                cycleCount += 2;
+                programCounter = (short) (pc + 4);
+                indexReg = (short) (i1 & 0xFFF);
+                draw((i2 >>> 8) & 0xF, (i2 >>> 4) & 0xF, i2 & 0xF);
+                executed = 2;
+            }
+            case COUNTER_LOOP -> {                                                          // 6xkk/7xkk, 3xkk/4xkk, 1nnn
+                cycleCount++;
+                if ((i1 >>> 12) == 0x6) vReg[(i1 >>> 8) & 0xF] = (byte) i1;
+                else vReg[(i1 >>> 8) & 0xF] += (byte) i1;
+                executed = 1 + skipOrJump(pc, i2, superinstructions.third(pc));
+            }
+            case TIMER_WAIT -> {                                                            // Fx07, 3xkk/4xkk, 1nnn
+                cycleCount++;
+                vReg[(i1 >>> 8) & 0xF] = (byte) delayTimer;
+                if (delayTimer > 0) countTimerPoll();
+                executed = 1 + skipOrJump(pc, i2, superinstructions.third(pc));
+            }
+            default -> executed = 0;
         }
+        superinstructions.executed(kind, executed);
+        return executed;
+    }
+
+    /**
+     * second and third instruction of a fused loop: 3xkk/4xkk at pc + 2 followed by 1nnn
+     * returns the number of executed instructions
+     */
+    private int skipOrJump(int pc, int skip, int jump) {
+        cycleCount++;
+        boolean equal = vReg[(skip >>> 8) & 0xF] == (byte) skip;
+        if (equal == ((skip >>> 12) == 0x3)) {
+            programCounter = (short) (pc + 6);
+            return 1;
+        }
+        cycleCount++;
+        programCounter = (short) (jump & 0xFFF);
+        return 2;
     }
 
     private void emptyInstCounter(short position) {
-        System.out.println("Empty instruction at " + position);
+        log("Empty instruction at " + position);
         emptyInst++;
         if (emptyInst >= 5) {
             isRunning = false;
-            System.out.println("Abort process because of multiple empty instructions");
+            isHalted = true;
+            log("Abort process because of multiple empty instructions");
         }
     }
 
@@ -323,6 +551,12 @@ public class Chip8 implements Runnable{
             programCounter = 0;
     }
 
+    private void decrementPC() {
+        this.programCounter--;
+        if (programCounter < 0)
+            programCounter = Memory.MEMORY_SIZE - 1;
+    }
+
     private static boolean willAdditionOverflow(byte left, byte right) {
         if (right < 0 && right != Byte.MIN_VALUE) {
             return willSubtractionOverflow(left, (byte)-right);
@@ -339,27 +573,9 @@ public class Chip8 implements Runnable{
         }
     }
 
-    private static int setNibble(int num) {
-        return setNibble(num, 0xF, 0);
-    }
-
-    private static int setNibble(int num, int nibble, int which) {
-        int shiftNibble= nibble << (4*which) ;
-        int shiftMask= 0x0000000F << (4*which) ;
-        return ( num & ~shiftMask ) | shiftNibble ;
-    }
-
-    private static byte hexCharToByte(char c1, char c2) {
-        return (byte) ((toDigit(c1) << 4) + toDigit(c2));
-    }
-
-    private static int toDigit(char hexChar) {
-        int digit = Character.digit(hexChar, 16);
-        if(digit == -1) {
-            throw new IllegalArgumentException(
-                    "Invalid Hexadecimal Character: "+ hexChar);
-        }
-        return digit;
+    private static String toHex(int instruction) {
+        String hex = Integer.toHexString(instruction).toUpperCase();
+        return "0000".substring(hex.length()) + hex;
     }
 
 }
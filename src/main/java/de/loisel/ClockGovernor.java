@@ -0,0 +1,119 @@
+/*
+ * Copyright 2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel;
+
+/**
+ * Adapts the clock speed of a chip, the chip turns it into cycles per 60 Hz
+ * frame and carries the fractions over to the next frame.
+ * <p>
+ * Most programs sync to the delay timer and spin on Fx07 (or Fx0A) until it
+ * runs out. The share of cycles spent in those waits shows how much slack a
+ * program has: with a lot of waiting the speed goes down, with almost none
+ * it goes up, always between the configured bounds. Programs that never wait
+ * keep their speed. The governor also measures the achieved instructions and
+ * frames per second and reports when the host cannot keep up.
+ */
+public class ClockGovernor {
+    private static final int WINDOW_FRAMES = 60;
+    private static final double FRAME_NANOS = 1e9 / 60;
+
+    private final long minSpeed;
+    private final long maxSpeed;
+    // Hz, written by the chip thread, read by the renderer and shutdown hooks
+    private volatile double speed;
+
+    private long windowStart = -1;
+    private int windowFrames = 0;
+    private long windowCycles = 0;
+    private long windowWaits = 0;
+    private double windowBudget = 0;
+    private volatile boolean behind = false;
+
+    public ClockGovernor(long minSpeed, long maxSpeed, long initialSpeed) {
+        if (minSpeed < 60 || maxSpeed < minSpeed)
+            throw new IllegalArgumentException("Invalid clock bounds: " + minSpeed + " to " + maxSpeed);
+        this.minSpeed = minSpeed;
+        this.maxSpeed = maxSpeed;
+        this.speed = Math.min(Math.max(initialSpeed, minSpeed), maxSpeed);
+    }
+
+    /**
+     * parses bounds given as "min:max" in Hz
+     */
+    public static ClockGovernor parse(String bounds, long initialSpeed) {
+        String[] parts = bounds.split(":");
+        if (parts.length != 2)
+            throw new IllegalArgumentException("Clock bounds must look like min:max, got " + bounds);
+        return new ClockGovernor(Long.parseLong(parts[0]), Long.parseLong(parts[1]), initialSpeed);
+    }
+
+    public long getClockSpeed() {
+        return Math.round(speed);
+    }
+
+    public boolean isBehind() {
+        return behind;
+    }
+
+    /**
+     * called once per frame with the cycles the chip executed and how many of them were spent waiting
+     */
+    public void frameDone(int executed, int waitCycles) {
+        long now = System.nanoTime();
+        if (windowStart < 0) {
+            windowStart = now;
+            return;
+        }
+
+        windowFrames++;
+        windowCycles += executed;
+        windowWaits += waitCycles;
+        windowBudget += speed / 60;
+        if (windowFrames < WINDOW_FRAMES)
+            return;
+
+        measure(now - windowStart);
+        adjust();
+
+        windowStart = now;
+        windowFrames = 0;
+        windowCycles = 0;
+        windowWaits = 0;
+        windowBudget = 0;
+    }
+
+    private void measure(long elapsed) {
+        // behind if the cycles of a frame did not fit or the frames came in late
+        boolean late = windowCycles < windowBudget * 0.9 || elapsed > windowFrames * FRAME_NANOS * 1.1;
+        if (late && !behind)
+            System.out.printf("Host cannot keep up: %.0f instructions/s at %.1f fps, target %d/s%n",
+                    windowCycles * 1e9 / elapsed, windowFrames * 1e9 / elapsed, getClockSpeed());
+        else if (!late && behind)
+            System.out.println("Host keeps up again at " + getClockSpeed() + " Hz");
+        behind = late;
+    }
+
+    private void adjust() {
+        if (windowWaits == 0)
+            return; // no timer waits, nothing tells how fast the program wants to run
+
+        if (windowWaits * 4 > windowCycles)
+            speed = Math.max(speed * 0.95, minSpeed);
+        else if (windowWaits * 20 < windowCycles && !behind)
+            speed = Math.min(speed * 1.1, maxSpeed);
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Monitoring view that tiles many chips into one window. Every chip runs in
+ * lockstep on the animation thread, so no thread per chip is needed.
+ * <p>
+ * All tiles live in one atlas image with one 64x32 cell per chip, a cell is
+ * only rewritten when its chip published a changed frame. The atlas is then
+ * drawn with a single scaled image call. Keys go to the focused tile, which is
+ * selected with the mouse or cycled with TAB.
+ * <p>
+ * Every tile shows how long its chip ran, how long rewriting its atlas cell
+ * took and its share of drawing the atlas and the overlay, which happens once
+ * for all tiles. The labels are formatted once per second.
+ */
+public class Dashboard extends PApplet {
+    private static Chip8[] chips;
+    private static FrameBuffer[] frameBuffers;
+    private static Keyboard[] keyboards;
+
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 960;
+
+    int columns;
+    int rows;
+    float tileWidth;
+    float tileHeight;
+
+    PImage atlas;
+    long[] versions;
+    long[] tileRows = new long[32];
+    // smoothed milliseconds per frame
+    float[] emulationCost; // runFrame() of the tile's chip
+    float[] cellCost; // rewriting the tile's atlas cell
+    float drawCost; // image(atlas) and the overlay, the atlas is uploaded there
+    String[] labels;
+    String status = "";
+    int focus = 0;
+
+    long lastCount = 0;
+    int fCounter = 0;
+    int fps = 0;
+
+    @Override
+    public void settings() {
+        size(WIDTH, HEIGHT);
+        noSmooth();
+    }
+
+    @Override
+    public void setup() {
+        frameRate(60);
+        background(0);
+        textSize(12);
+
+        columns = (int) Math.ceil(Math.sqrt(chips.length));
+        rows = (chips.length + columns - 1) / columns;
+        tileWidth = WIDTH / (float) columns;
+        tileHeight = HEIGHT / (float) rows;
+
+        atlas = createImage(columns * 64, rows * 32, RGB);
+        atlas.loadPixels();
+        Arrays.fill(atlas.pixels, FrameBuffer.OFF_COLOR);
+        atlas.updatePixels();
+
+        versions = new long[chips.length];
+        Arrays.fill(versions, -1);
+        emulationCost = new float[chips.length];
+        cellCost = new float[chips.length];
+        labels = new String[chips.length];
+        Arrays.fill(labels, "");
+    }
+
+    @Override
+    public void draw() {
+        for (int i = 0; i < chips.length; i++) {
+            long start = System.nanoTime();
+            chips[i].runFrame();
+            long emulated = System.nanoTime();
+            updateTile(i);
+            emulationCost[i] = smooth(emulationCost[i], emulated - start);
+            cellCost[i] = smooth(cellCost[i], System.nanoTime() - emulated);
+        }
+
+        long start = System.nanoTime();
+        image(atlas, 0, 0, columns * tileWidth, rows * tileHeight);
+        drawOverlay();
+        drawCost = smooth(drawCost, System.nanoTime() - start);
+        countFPS();
+    }
+
+    private static float smooth(float average, long nanos) {
+        return average + (nanos / 1e6F - average) * 0.05F;
+    }
+
+    private void updateTile(int tile) {
+        long version = frameBuffers[tile].copyPublished(tileRows);
+        if (version == versions[tile])
+            return;
+        versions[tile] = version;
+
+        int cellX = (tile % columns) * 64;
+        int cellY = (tile / columns) * 32;
+        int[] pixels = atlas.pixels;
+        for (int y = 0; y < 32; y++) {
+            long row = tileRows[y];
+            int offset = (cellY + y) * atlas.width + cellX;
+            for (int x = 0; x < 64; x++)
+                pixels[offset + x] = ((row >>> (63 - x)) & 1) != 0 ? FrameBuffer.ON_COLOR : FrameBuffer.OFF_COLOR;
+        }
+        atlas.updatePixels(cellX, cellY, 64, 32);
+    }
+
+    private void drawOverlay() {
+        fill(255, 255, 255);
+        for (int i = 0; i < chips.length; i++) {
+            float x = (i % columns) * tileWidth;
+            float y = (i / columns) * tileHeight;
+            text(labels[i], x + 4, y + 14);
+        }
+        text(status, 4, HEIGHT - 6);
+
+        noFill();
+        stroke(255, 255, 255);
+        strokeWeight(2);
+        rect((focus % columns) * tileWidth + 1, (focus / columns) * tileHeight + 1, tileWidth - 2, tileHeight - 2);
+        noStroke();
+    }
+
+    @Override
+    public void mousePressed() {
+        int tile = (int) (mouseY / tileHeight) * columns + (int) (mouseX / tileWidth);
+        if (tile < chips.length)
+            setFocus(tile);
+    }
+
+    @Override
+    public void keyPressed() {
+        if (key == TAB)
+            setFocus((focus + 1) % chips.length);
+        else
+            setKey(key, true);
+    }
+
+    @Override
+    public void keyReleased() {
+        setKey(key, false);
+    }
+
+    private void setFocus(int tile) {
+        keyboards[focus].resetKeys(); // don't leave keys stuck on the tile losing focus
+        focus = tile;
+    }
+
+    private void setKey(char k, boolean state) {
+        byte key = Keyboard.mapKey(k);
+        if (key < 16)
+            if (state)
+                keyboards[focus].set(key);
+            else
+                keyboards[focus].unset(key);
+    }
+
+    private void countFPS() {
+        fCounter++;
+        if(System.currentTimeMillis() > lastCount + 1000) {
+            fps = fCounter;
+            fCounter = 0;
+            updateLabels();
+            lastCount = System.currentTimeMillis();
+        }
+    }
+
+    private void updateLabels() {
+        for (int i = 0; i < chips.length; i++)
+            labels[i] = String.format("%d: emulation %.3f ms, cell %.3f ms%ndraw share %.3f ms",
+                    i, emulationCost[i], cellCost[i], drawCost / chips.length);
+        status = String.format("FPS: %d, atlas and overlay %.3f ms", fps, drawCost);
+    }
+
+    /**
+     * args: one or more ROM files, --tiles=N repeats them until N tiles are filled
+     */
+    public static void main( String[] args ) {
+
+        if (args == null || args.length == 0) {
+            throw new RuntimeException("No arguments found. Cannot load program!");
+        }
+
+        List<String> roms = new ArrayList<>();
+        int tiles = 0;
+        for (String arg : args) {
+            if (arg.startsWith("--tiles="))
+                tiles = Integer.parseInt(arg.substring("--tiles=".length()));
+            else
+                roms.add(arg);
+        }
+        if (roms.isEmpty())
+            throw new RuntimeException("No program given!");
+        if (tiles <= 0)
+            tiles = roms.size();
+
+        Program[] programs = new Program[roms.size()];
+        for (int i = 0; i < programs.length; i++)
+            programs[i] = new Program(roms.get(i));
+
+        chips = new Chip8[tiles];
+        frameBuffers = new FrameBuffer[tiles];
+        keyboards = new Keyboard[tiles];
+        for (int i = 0; i < tiles; i++) {
+            frameBuffers[i] = new FrameBuffer();
+            keyboards[i] = new Keyboard();
+            chips[i] = new Chip8(programs[i % programs.length], frameBuffers[i], keyboards[i]);
+        }
+
+        String[] appletArgs = new String[] { "Chip8 Dashboard by loisel" };
+        PApplet.runSketch(appletArgs, new Dashboard());
+    }
+}
@@ -17,45 +17,111 @@
 package de.loisel;
 
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * The 64x32 display, stored as 32 rows of 64 bits where pixel x of a row is
+ * bit 63 - x. The working image belongs to the thread running the chip and is
+ * drawn to without locking. {@link #publish()} copies it to the published
+ * frame once per 60 Hz frame, which is all other threads get to see.
+ */
 public class FrameBuffer {
-    private boolean[][] buffer;
+    private static final int COLUMNS = 64;
+    private static final int ROWS = 32;
+
+    /** ARGB colours of lit and dark pixels, shared by all renderers */
+    public static final int ON_COLOR = 0xFF326400;
+    public static final int OFF_COLOR = 0xFF000000;
+
+    private final long[] rows = new long[ROWS];
+
+    private final List<FrameListener> listeners = new CopyOnWriteArrayList<>();
+    private final long[] published = new long[ROWS];
+    private long frameCount = 0;
+    private long version = 0;
 
-    public FrameBuffer() {
-        buffer = new boolean[64][32];
+    public void addListener(FrameListener listener) {
+        listeners.add(listener);
     }
 
-    public synchronized boolean setPixel(int x, int y) {
-        buffer[x][y] = !buffer[x][y];
-        return !buffer[x][y];
+    /**
+     * Marks the end of a 60 Hz frame and hands the current image to the
+     * listeners. Must only be called by the thread running the chip.
+     */
+    public void publish() {
+        frameCount++;
+        synchronized (this) {
+            if (!Arrays.equals(rows, published)) {
+                System.arraycopy(rows, 0, published, 0, ROWS);
+                version++;
+            }
+        }
+        for (FrameListener listener : listeners)
+            listener.framePublished(rows, frameCount);
     }
 
-    public synchronized void clearBuffer() {
-        buffer = new boolean[64][32];
+    /**
+     * copies the last published frame as 32 rows of 64 bits, pixel x of a row is bit 63 - x,
+     * and returns its version, a number that changes whenever a published frame differs from the one before
+     */
+    public synchronized long copyPublished(long[] rows) {
+        System.arraycopy(published, 0, rows, 0, ROWS);
+        return version;
     }
 
+    /**
+     * toggles a pixel of the working image, returns true if it was set before
+     */
+    public boolean setPixel(int x, int y) {
+        long bit = 1L << (63 - x);
+        boolean wasSet = (rows[y] & bit) != 0;
+        rows[y] ^= bit;
+        return wasSet;
+    }
+
+    /**
+     * returns the first row where the working images differ, -1 if they are equal
+     */
+    public int mismatch(FrameBuffer other) {
+        return Arrays.mismatch(rows, other.rows);
+    }
+
+    public void clearBuffer() {
+        Arrays.fill(rows, 0);
+    }
+
+    /**
+     * returns the last published frame as [x][y] array
+     */
     public synchronized boolean[][] copyBuffer() {
-        return Arrays.stream(buffer).map(boolean[]::clone).toArray(boolean[][]::new);
+        boolean[][] copy = new boolean[COLUMNS][ROWS];
+        for (int y = 0; y < ROWS; y++)
+            for (int x = 0; x < COLUMNS; x++)
+                copy[x][y] = ((published[y] >>> (63 - x)) & 1) != 0;
+        return copy;
     }
 
     /**
-     * returns true on pixel collision
+     * Draws length sprite rows read from source starting at offset, wrapping
+     * around at the end of source, so a sprite can be drawn straight out of
+     * memory. returns true on pixel collision
      */
-    public synchronized boolean setSprite(byte[] sprite, byte xCord, byte yCord) {
-
-        int xC = Byte.toUnsignedInt(xCord) % 64;
-        int yC = Byte.toUnsignedInt(yCord) % 32;
-
-        boolean collision = false;
-        for (int i = 0; (i < sprite.length) && (yC + i < 32); i++) {
-            String byteString = String.format("%8s", Integer.toBinaryString(sprite[i] & 0xFF)).replace(' ', '0');
-            for (int j = 0; (j < 8) && (xC + j < 64); j++) {
-                if(byteString.charAt(j) == '1') {
-                    collision = buffer[xC + j][yC + i];
-                    buffer[xC + j][yC + i] = !buffer[xC + j][yC + i];
-                }
-            }
+    public boolean setSprite(byte[] source, int offset, int length, byte xCord, byte yCord) {
+
+        int xC = Byte.toUnsignedInt(xCord) % COLUMNS;
+        int yC = Byte.toUnsignedInt(yCord) % ROWS;
+
+        long collision = 0;
+        int index = offset;
+        for (int i = 0; (i < length) && (yC + i < ROWS); i++) {
+            // sprite row to the top byte, then to column xC, anything right of the screen falls off
+            long bits = ((long) (source[index] & 0xFF) << 56) >>> xC;
+            collision |= rows[yC + i] & bits;
+            rows[yC + i] ^= bits;
+            if (++index == source.length)
+                index = 0;
         }
-        return collision;
+        return collision != 0;
     }
 }
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel;
+
+/**
+ * Receives the frames published by a {@link FrameBuffer}. Called on the
+ * emulator thread, so implementations have to return quickly.
+ */
+public interface FrameListener {
+
+    /**
+     * rows are packed like {@link FrameBuffer#copyPublished(long[])} and only valid
+     * during the call, frame counts the publications of the buffer
+     */
+    void framePublished(long[] rows, long frame);
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records published frames to a PNG sequence (one file per changed frame,
+ * named after the frame number) or to an animated GIF.
+ * <p>
+ * The emulator thread only copies a frame into a bounded single producer /
+ * single consumer ring and never waits: duplicates of the previous frame are
+ * skipped and frames are dropped when the ring is full. A background thread
+ * upscales and encodes them, GIF frames only contain the rectangle that
+ * changed since the previous frame.
+ */
+public class FrameRecorder implements FrameListener {
+    public enum Format { PNG, GIF }
+
+    private static final int QUEUE_SIZE = 256;
+    private static final int QUEUE_MASK = QUEUE_SIZE - 1;
+    private static final int ROWS = 32;
+
+    private final File target;
+    private final Format format;
+    private final Upscaler upscaler;
+    private final int onColor;
+    private final Thread encoderThread;
+
+    // ring buffer, slots between head and tail belong to the encoder
+    private final long[][] slots = new long[QUEUE_SIZE][ROWS];
+    private final long[] slotFrames = new long[QUEUE_SIZE];
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // producer side
+    private final long[] lastRows = new long[ROWS];
+    private boolean hasLastRows = false;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    // encoder side
+    private volatile boolean stopped = false;
+    private final BufferedImage image;
+    private final long[] encodedRows = new long[ROWS];
+    private long encoded = 0;
+    private long reportedDrops = 0;
+    private ImageWriter gifWriter;
+    private ImageOutputStream gifOutput;
+    private BufferedImage pendingImage;
+    private int pendingX, pendingY;
+    private long pendingFrame;
+    private long gifFrames = 0;
+
+    public FrameRecorder(File target, Format format, Upscaler upscaler, int onColor, int offColor) {
+        this.target = target;
+        this.format = format;
+        this.upscaler = upscaler;
+        this.onColor = onColor;
+
+        IndexColorModel palette = new IndexColorModel(8, 2,
+                new byte[] { (byte) (offColor >> 16), (byte) (onColor >> 16) },
+                new byte[] { (byte) (offColor >> 8), (byte) (onColor >> 8) },
+                new byte[] { (byte) offColor, (byte) onColor });
+        this.image = new BufferedImage(upscaler.getWidth(), upscaler.getHeight(),
+                BufferedImage.TYPE_BYTE_INDEXED, palette);
+        this.encoderThread = new Thread(this::encodeLoop, "Recorder Thread");
+    }
+
+    /**
+     * records to an animated GIF if the path ends with .gif, otherwise to a PNG sequence in that directory
+     */
+    public static FrameRecorder forPath(String path, int scale, Upscaler.Filter filter, int onColor, int offColor) {
+        Format format = path.toLowerCase().endsWith(".gif") ? Format.GIF : Format.PNG;
+        Upscaler upscaler = new Upscaler(64 * scale, 32 * scale, filter, onColor, offColor);
+        return new FrameRecorder(new File(path), format, upscaler, onColor, offColor);
+    }
+
+    public void start() {
+        encoderThread.start();
+    }
+
+    /**
+     * encodes the remaining frames, finishes the file and prints a summary
+     */
+    public void stop() {
+        stopped = true;
+        try {
+            encoderThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Recorded " + encoded + " frames to " + target + ", skipped "
+                + skipped.get() + " duplicates, dropped " + dropped.get() + " frames");
+    }
+
+    @Override
+    public void framePublished(long[] rows, long frame) {
+        if (hasLastRows && sameRows(rows, lastRows)) {
+            skipped.incrementAndGet();
+            return;
+        }
+
+        long t = tail.get();
+        if (t - head.get() >= QUEUE_SIZE) {
+            dropped.incrementAndGet();
+            return;
+        }
+        int slot = (int) (t & QUEUE_MASK);
+        System.arraycopy(rows, 0, slots[slot], 0, ROWS);
+        slotFrames[slot] = frame;
+        tail.lazySet(t + 1);
+
+        System.arraycopy(rows, 0, lastRows, 0, ROWS);
+        hasLastRows = true;
+    }
+
+    private void encodeLoop() {
+        try {
+            if (format == Format.GIF)
+                openGif();
+            else if (!target.isDirectory() && !target.mkdirs())
+                throw new IOException("Cannot create directory " + target);
+
+            while (true) {
+                long h = head.get();
+                if (h == tail.get()) {
+                    if (stopped && h == tail.get())
+                        break;
+                    LockSupport.parkNanos(1_000_000);
+                    continue;
+                }
+                int slot = (int) (h & QUEUE_MASK);
+                encode(slots[slot], slotFrames[slot]);
+                head.lazySet(h + 1);
+                reportDrops();
+            }
+
+            if (format == Format.GIF)
+                closeGif();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void reportDrops() {
+        long drops = dropped.get();
+        if (drops != reportedDrops) {
+            System.out.println("Recorder fell behind, dropped " + (drops - reportedDrops) + " frames");
+            reportedDrops = drops;
+        }
+    }
+
+    private void encode(long[] rows, long frame) throws IOException {
+        int[] pixels = upscaler.upscale(rows);
+        byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < pixels.length; i++)
+            data[i] = pixels[i] == onColor ? (byte) 1 : (byte) 0;
+
+        if (format == Format.PNG)
+            ImageIO.write(image, "png", new File(target, String.format("frame-%06d.png", frame)));
+        else
+            appendGif(rows, frame);
+
+        System.arraycopy(rows, 0, encodedRows, 0, ROWS);
+        encoded++;
+    }
+
+    private void appendGif(long[] rows, long frame) throws IOException {
+        int top = ROWS, bottom = -1;
+        long changedColumns = 0;
+        for (int y = 0; y < ROWS; y++) {
+            long diff = rows[y] ^ encodedRows[y];
+            if (encoded == 0)
+                diff = -1L;
+            if (diff != 0) {
+                top = Math.min(top, y);
+                bottom = y;
+                changedColumns |= diff;
+            }
+        }
+        if (bottom < 0)
+            return; // same as the last encoded frame, the pending frame just stays longer
+
+        // the smoothing filters derive the sub pixels from the 3x3 neighbourhood,
+        // so a changed pixel also changes the blocks around it
+        int margin = upscaler.getFilter() == Upscaler.Filter.NEAREST ? 0 : 1;
+        int left = Math.max(Long.numberOfLeadingZeros(changedColumns) - margin, 0);
+        int right = Math.min(63 - Long.numberOfTrailingZeros(changedColumns) + margin, 63);
+        top = Math.max(top - margin, 0);
+        bottom = Math.min(bottom + margin, ROWS - 1);
+
+        int x0 = left * image.getWidth() / 64;
+        int x1 = ((right + 1) * image.getWidth() + 63) / 64;
+        int y0 = top * image.getHeight() / ROWS;
+        int y1 = ((bottom + 1) * image.getHeight() + ROWS - 1) / ROWS;
+
+        BufferedImage region = new BufferedImage(x1 - x0, y1 - y0,
+                BufferedImage.TYPE_BYTE_INDEXED, (IndexColorModel) image.getColorModel());
+        region.getRaster().setRect(-x0, -y0, image.getRaster());
+
+        if (pendingImage != null)
+            writeGifFrame(frame);
+        pendingImage = region;
+        pendingX = x0;
+        pendingY = y0;
+        pendingFrame = frame;
+    }
+
+    private void openGif() throws IOException {
+        gifWriter = ImageIO.getImageWritersByFormatName("gif").next();
+        gifOutput = ImageIO.createImageOutputStream(target);
+        gifWriter.setOutput(gifOutput);
+        gifWriter.prepareWriteSequence(null);
+    }
+
+    private void closeGif() throws IOException {
+        if (pendingImage != null)
+            writeGifFrame(pendingFrame + 1);
+        gifWriter.endWriteSequence();
+        gifOutput.close();
+        gifWriter.dispose();
+    }
+
+    /**
+     * writes the pending frame, it is shown until nextFrame
+     */
+    private void writeGifFrame(long nextFrame) throws IOException {
+        // delays are in 1/100 s, round the absolute times so they don't drift
+        int delay = (int) (Math.round(nextFrame * 100 / 60D) - Math.round(pendingFrame * 100 / 60D));
+
+        ImageWriteParam param = gifWriter.getDefaultWriteParam();
+        IIOMetadata metadata = gifWriter.getDefaultImageMetadata(new ImageTypeSpecifier(pendingImage), param);
+        String formatName = metadata.getNativeMetadataFormatName();
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(formatName);
+
+        IIOMetadataNode descriptor = child(root, "ImageDescriptor");
+        descriptor.setAttribute("imageLeftPosition", Integer.toString(pendingX));
+        descriptor.setAttribute("imageTopPosition", Integer.toString(pendingY));
+        descriptor.setAttribute("imageWidth", Integer.toString(pendingImage.getWidth()));
+        descriptor.setAttribute("imageHeight", Integer.toString(pendingImage.getHeight()));
+        descriptor.setAttribute("interlaceFlag", "FALSE");
+
+        IIOMetadataNode control = child(root, "GraphicControlExtension");
+        control.setAttribute("disposalMethod", "doNotDispose");
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("transparentColorFlag", "FALSE");
+        control.setAttribute("delayTime", Integer.toString(Math.max(delay, 1)));
+        control.setAttribute("transparentColorIndex", "0");
+
+        if (gifFrames == 0) { // the first frame of the sequence loops the animation
+            IIOMetadataNode extensions = child(root, "ApplicationExtensions");
+            IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+            loop.setAttribute("applicationID", "NETSCAPE");
+            loop.setAttribute("authenticationCode", "2.0");
+            loop.setUserObject(new byte[] { 1, 0, 0 });
+            extensions.appendChild(loop);
+        }
+
+        metadata.setFromTree(formatName, root);
+        gifWriter.writeToSequence(new IIOImage(pendingImage, null, metadata), param);
+        gifFrames++;
+    }
+
+    private static IIOMetadataNode child(IIOMetadataNode root, String name) {
+        for (int i = 0; i < root.getLength(); i++) {
+            if (root.item(i).getNodeName().equalsIgnoreCase(name))
+                return (IIOMetadataNode) root.item(i);
+        }
+        IIOMetadataNode node = new IIOMetadataNode(name);
+        root.appendChild(node);
+        return node;
+    }
+
+    private static boolean sameRows(long[] a, long[] b) {
+        for (int y = 0; y < ROWS; y++)
+            if (a[y] != b[y])
+                return false;
+        return true;
+    }
+}
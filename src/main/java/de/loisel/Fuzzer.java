@@ -0,0 +1,383 @@
+/*
+ * Copyright 2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Differential fuzzer for the execution engines. Every test case is a
+ * generated or mutated program that runs on the plain interpreter and on
+ * each variant, with the same random seed and the same scripted key presses.
+ * The full machine state is compared after every dispatch of the variant:
+ * after every instruction, or after every superinstruction when it fused
+ * several. A divergence is shrunk to a minimal program before it is reported.
+ * <p>
+ * usage: Fuzzer [--seconds=N] [--threads=N] [--seed=N] [--steps=N] [rom...]
+ * the ROMs are used as corpus for mutations
+ */
+public class Fuzzer {
+    private static final int CYCLES_PER_FRAME = 10;
+    private static final int KEY_INTERVAL = 97;
+    private static final int FILLER = 0x8000; // LD V0, V0 changes nothing but the program counter
+    private static final int LONGEST_DISPATCH = longestDispatch();
+
+    private record Variant(String name, Consumer<Chip8> setup) { }
+
+    private static final List<Variant> VARIANTS = List.of(
+            new Variant("fused", chip -> chip.setFusion(true))
+    );
+
+    private record Divergence(String variant, long seed, int step, String difference, byte[] program) { }
+
+    private final List<byte[]> corpus;
+    private final int maxSteps;
+
+    private final AtomicLong comparedInstructions = new AtomicLong();
+    private final AtomicLong cases = new AtomicLong();
+    private final ConcurrentLinkedQueue<Divergence> divergences = new ConcurrentLinkedQueue<>();
+
+    public Fuzzer(List<byte[]> corpus, int maxSteps) {
+        this.corpus = corpus;
+        this.maxSteps = maxSteps;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long seconds = 60;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long seed = System.nanoTime();
+        int steps = 20_000;
+        List<byte[]> corpus = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--seconds="))
+                seconds = Long.parseLong(arg.substring("--seconds=".length()));
+            else if (arg.startsWith("--threads="))
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            else if (arg.startsWith("--seed="))
+                seed = Long.parseLong(arg.substring("--seed=".length()));
+            else if (arg.startsWith("--steps="))
+                steps = Integer.parseInt(arg.substring("--steps=".length()));
+            else if (new File(arg).isFile())
+                corpus.add(new Program(arg).getProgram());
+            else
+                throw new RuntimeException("Unknown argument: " + arg);
+        }
+
+        System.out.println("Fuzzing " + threads + " threads for " + seconds + " seconds, seed " + seed
+                + ", corpus of " + corpus.size() + " programs");
+        Fuzzer fuzzer = new Fuzzer(corpus, steps);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            long workerSeed = seed + i;
+            workers[i] = new Thread(() -> fuzzer.work(workerSeed, deadline), "Fuzzer " + i);
+            workers[i].start();
+        }
+
+        long start = System.nanoTime();
+        long lastCount = 0;
+        long lastTime = start;
+        while (deadline - System.nanoTime() > 1_000_000_000L) {
+            Thread.sleep(Math.min(5000, (deadline - System.nanoTime()) / 1_000_000));
+            long now = System.nanoTime();
+            long count = fuzzer.comparedInstructions.get();
+            System.out.printf("%,d cases, %,d instructions compared, %,.0f instructions/s, %d divergences%n",
+                    fuzzer.cases.get(), count, (count - lastCount) * 1e9 / (now - lastTime), fuzzer.divergences.size());
+            lastCount = count;
+            lastTime = now;
+        }
+        for (Thread worker : workers)
+            worker.join();
+
+        long count = fuzzer.comparedInstructions.get();
+        System.out.printf("Done: %,d instructions compared in %.1f s, %,.0f instructions/s%n",
+                count, (System.nanoTime() - start) / 1e9, count * 1e9 / (System.nanoTime() - start));
+        for (Divergence divergence : fuzzer.divergences)
+            report(divergence);
+        if (!fuzzer.divergences.isEmpty())
+            System.exit(1);
+    }
+
+    private void work(long workerSeed, long deadline) {
+        Random random = new Random(workerSeed);
+        Machine reference = new Machine(null);
+        Machine[] variants = new Machine[VARIANTS.size()];
+        for (int v = 0; v < variants.length; v++)
+            variants[v] = new Machine(VARIANTS.get(v));
+
+        while (System.nanoTime() < deadline) {
+            long caseSeed = random.nextLong();
+            byte[] program = corpus.isEmpty() || random.nextBoolean()
+                    ? generate(new Random(caseSeed))
+                    : mutate(corpus.get(random.nextInt(corpus.size())), new Random(caseSeed));
+
+            for (Machine variant : variants) {
+                int step = compare(reference, variant, program, caseSeed, maxSteps);
+                if (step >= 0) {
+                    // leave room for a whole dispatch, a smaller budget could keep the diverging one from running
+                    int bound = step + LONGEST_DISPATCH;
+                    byte[] minimal = shrink(reference, variant, program, caseSeed, bound);
+                    int minimalStep = compare(reference, variant, minimal, caseSeed, bound);
+                    divergences.add(new Divergence(variant.variant.name(), caseSeed, minimalStep,
+                            reference.chip.difference(variant.chip), minimal));
+                }
+            }
+            cases.incrementAndGet();
+        }
+    }
+
+    /**
+     * runs program on both machines, returns the number of executed
+     * instructions when the states diverged, -1 if they never did
+     */
+    private int compare(Machine reference, Machine variant, byte[] program, long caseSeed, int steps) {
+        reference.load(program, caseSeed);
+        variant.load(program, caseSeed);
+        Random keys = new Random(~caseSeed);
+
+        int executed = 0;
+        int frameExecuted = 0;
+        int nextKeyChange = KEY_INTERVAL;
+        while (executed < steps && !reference.chip.isHalted()) {
+            // a fused dispatch must not run past a frame end or a key change
+            int budget = Math.min(Math.min(CYCLES_PER_FRAME - frameExecuted, nextKeyChange - executed), steps - executed);
+            int dispatched = variant.chip.step(budget);
+            for (int i = 0; i < dispatched; i++)
+                reference.chip.step(1);
+            executed += dispatched;
+            frameExecuted += dispatched;
+
+            if (reference.chip.difference(variant.chip) != null) {
+                comparedInstructions.addAndGet(executed);
+                return executed;
+            }
+
+            if (frameExecuted == CYCLES_PER_FRAME) {
+                reference.chip.endFrame(frameExecuted);
+                variant.chip.endFrame(frameExecuted);
+                frameExecuted = 0;
+            }
+            if (executed == nextKeyChange) {
+                byte key = (byte) keys.nextInt(16);
+                reference.keyboard.toggleKeyState(key);
+                variant.keyboard.toggleKeyState(key);
+                nextKeyChange += KEY_INTERVAL;
+            }
+        }
+        comparedInstructions.addAndGet(executed);
+        return -1;
+    }
+
+    /**
+     * Cuts the program down while it still diverges within steps: drops words
+     * from the end, then replaces ever smaller chunks of words with a filler
+     * instruction that changes nothing but the program counter, then drops
+     * words from the end again.
+     */
+    private byte[] shrink(Machine reference, Machine variant, byte[] program, long caseSeed, int steps) {
+        byte[] current = trim(reference, variant, program.clone(), caseSeed, steps);
+        int words = current.length / 2;
+
+        for (int chunk = Math.max(1, words / 2); chunk >= 1; chunk /= 2) {
+            boolean progress = true;
+            while (progress) {
+                progress = false;
+                for (int start = 0; start < words; start += chunk) {
+                    byte[] candidate = current.clone();
+                    boolean changed = false;
+                    for (int w = start; w < Math.min(start + chunk, words); w++) {
+                        int word = ((candidate[2 * w] & 0xFF) << 8) | (candidate[2 * w + 1] & 0xFF);
+                        if (word != FILLER) {
+                            candidate[2 * w] = (byte) (FILLER >>> 8);
+                            candidate[2 * w + 1] = (byte) FILLER;
+                            changed = true;
+                        }
+                    }
+                    if (changed && compare(reference, variant, candidate, caseSeed, steps) >= 0) {
+                        current = candidate;
+                        progress = true;
+                    }
+                }
+            }
+            if (chunk == 1)
+                break;
+        }
+        return trim(reference, variant, current, caseSeed, steps);
+    }
+
+    private byte[] trim(Machine reference, Machine variant, byte[] program, long caseSeed, int steps) {
+        byte[] current = program;
+        while (current.length > 2) {
+            byte[] candidate = Arrays.copyOf(current, current.length - 2);
+            if (compare(reference, variant, candidate, caseSeed, steps) < 0)
+                break;
+            current = candidate;
+        }
+        return current;
+    }
+
+    private static void report(Divergence divergence) {
+        byte[] program = divergence.program();
+        StringBuilder words = new StringBuilder();
+        for (int i = 0; i + 1 < program.length; i += 2) {
+            int word = ((program[i] & 0xFF) << 8) | (program[i + 1] & 0xFF);
+            if (word != FILLER)
+                words.append(String.format(" %03X:%04X", 0x200 + i, word));
+        }
+        System.out.println("Divergence in " + divergence.variant() + " after " + divergence.step()
+                + " instructions (seed " + divergence.seed() + "): " + divergence.difference());
+        System.out.printf("  program of %d words, all others are %04X:%s%n", program.length / 2, FILLER, words);
+    }
+
+    private static int longestDispatch() {
+        int longest = 1;
+        for (Superinstructions.Kind kind : Superinstructions.Kind.values())
+            longest = Math.max(longest, kind.length);
+        return longest;
+    }
+
+    /**
+     * random programs built mostly from real instructions, with loops and the idioms the fused engine targets
+     */
+    static byte[] generate(Random random) {
+        int words = 16 + random.nextInt(240);
+        byte[] program = new byte[words * 2];
+        int w = 0;
+        while (w < words) {
+            int[] idiom = random.nextInt(4) == 0 ? idiom(random, 0x200 + 2 * w) : null;
+            if (idiom != null && w + idiom.length <= words) {
+                for (int word : idiom)
+                    put(program, w++, word);
+            } else {
+                put(program, w++, instruction(random, words));
+            }
+        }
+        return program;
+    }
+
+    /**
+     * one of the idioms the fused engine targets, placed at address and ending
+     * with a jump back to its first word. The loops run for up to 256 rounds,
+     * far past the point where they get fused, and the small skip values make
+     * them both run out and keep going.
+     */
+    private static int[] idiom(Random random, int address) {
+        int x = random.nextInt(16) << 8;
+        int skip = (random.nextBoolean() ? 0x3000 : 0x4000) | x | random.nextInt(4);
+        return switch (random.nextInt(3)) {
+            // Annn Dxyn, counted down by a register that may also be drawn with
+            case 0 -> new int[] {
+                    0xA000 | (random.nextBoolean() ? 0x050 + random.nextInt(80) : random.nextInt(0x1000)),
+                    0xD000 | random.nextInt(0x1000),
+                    0x7000 | x | (1 + random.nextInt(3)),
+                    skip,
+                    0x1000 | address
+            };
+            // 6xkk/7xkk 3xkk/4xkk 1nnn, a constant only leaves the loop when it matches right away
+            case 1 -> new int[] {
+                    random.nextInt(4) == 0 ? 0x6000 | x | random.nextInt(4) : 0x7000 | x | (1 + random.nextInt(3)),
+                    skip,
+                    0x1000 | address
+            };
+            // Fx07 3xkk/4xkk 1nnn after setting the delay timer, the wait spans several frames
+            default -> new int[] {
+                    0x6000 | x | (30 + random.nextInt(90)),
+                    0xF015 | x,
+                    0xF007 | x,
+                    skip,
+                    0x1000 | (address + 4)
+            };
+        };
+    }
+
+    private static int instruction(Random random, int words) {
+        int target = 0x200 + 2 * random.nextInt(words);
+        int x = random.nextInt(16) << 8;
+        return switch (random.nextInt(12)) {
+            case 0 -> 0x6000 | x | random.nextInt(256);
+            case 1 -> 0x7000 | x | random.nextInt(256);
+            case 2 -> (random.nextBoolean() ? 0x3000 : 0x4000) | x | random.nextInt(4);
+            case 3 -> 0x1000 | target;
+            case 4 -> 0xA000 | (random.nextBoolean() ? target : random.nextInt(0x1000));
+            case 5 -> 0xD000 | random.nextInt(0x1000);
+            case 6 -> 0xF007 | x;
+            case 7 -> 0x8000 | random.nextInt(0x1000);
+            case 8 -> random.nextBoolean() ? 0x2000 | target : 0x00EE;
+            case 9 -> 0xF000 | x | new int[] { 0x0A, 0x15, 0x18, 0x1E, 0x29, 0x33, 0x55, 0x65 }[random.nextInt(8)];
+            case 10 -> (random.nextBoolean() ? 0xE09E : 0xE0A1) | x;
+            default -> random.nextInt(0x10000);
+        };
+    }
+
+    private static void put(byte[] program, int w, int word) {
+        program[2 * w] = (byte) (word >>> 8);
+        program[2 * w + 1] = (byte) word;
+    }
+
+    /**
+     * flips bits, replaces and copies instruction words of a corpus program
+     */
+    static byte[] mutate(byte[] original, Random random) {
+        byte[] program = original.length < 2 ? generate(random) : original.clone();
+        int mutations = 1 + random.nextInt(8);
+        for (int m = 0; m < mutations; m++) {
+            int w = random.nextInt(program.length / 2) * 2;
+            switch (random.nextInt(3)) {
+                case 0 -> program[w + random.nextInt(2)] ^= (byte) (1 << random.nextInt(8));
+                case 1 -> put(program, w / 2, instruction(random, program.length / 2));
+                default -> {
+                    int from = random.nextInt(program.length / 2) * 2;
+                    program[w] = program[from];
+                    program[w + 1] = program[from + 1];
+                }
+            }
+        }
+        return program;
+    }
+
+    /**
+     * one engine with its own display and keyboard, reused for every case
+     */
+    private static final class Machine {
+        final Variant variant;
+        final FrameBuffer frameBuffer = new FrameBuffer();
+        final Keyboard keyboard = new Keyboard();
+        final Chip8 chip;
+
+        Machine(Variant variant) {
+            this.variant = variant;
+            this.chip = new Chip8(new Program(new byte[0]), frameBuffer, keyboard);
+            chip.verbose = false;
+            if (variant != null)
+                variant.setup().accept(chip);
+        }
+
+        void load(byte[] program, long caseSeed) {
+            chip.reset(new Program(program));
+            chip.rand = new Random(caseSeed);
+            keyboard.resetKeys();
+        }
+    }
+}
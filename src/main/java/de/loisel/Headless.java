@@ -0,0 +1,105 @@
+/*
+ * Copyright 2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel;
+
+/**
+ * Startup optimised entry point for short-lived runs (CI, batch jobs).
+ * Runs a program for a fixed number of 60 Hz frames as fast as possible
+ * without a window. This class must never touch processing.core, so
+ * launching it does not pay for loading the render library.
+ */
+public class Headless {
+    static final String DEFAULT_GOVERNOR_BOUNDS = "300:1500";
+
+    public static void main(String[] args) {
+        long startTime = System.nanoTime();
+
+        if (args == null || args.length == 0) {
+            throw new RuntimeException("No arguments found. Cannot load program!");
+        }
+
+        int frames = 600;
+        long clockSpeed = 500;
+        String recordPath = null;
+        String governorBounds = null;
+        boolean fusion = false;
+        Upscaler.Filter filter = Upscaler.Filter.NEAREST;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--frames="))
+                frames = Integer.parseInt(args[i].substring("--frames=".length()));
+            else if (args[i].startsWith("--speed="))
+                clockSpeed = Long.parseLong(args[i].substring("--speed=".length()));
+            else if (args[i].startsWith("--record="))
+                recordPath = args[i].substring("--record=".length());
+            else if (args[i].equals("--scale2x"))
+                filter = Upscaler.Filter.SCALE2X;
+            else if (args[i].equals("--scale3x"))
+                filter = Upscaler.Filter.SCALE3X;
+            else if (args[i].equals("--fuse"))
+                fusion = true;
+            else if (args[i].equals("--governor"))
+                governorBounds = DEFAULT_GOVERNOR_BOUNDS;
+            else if (args[i].startsWith("--governor="))
+                governorBounds = args[i].substring("--governor=".length());
+            else
+                throw new RuntimeException("Unknown argument: " + args[i]);
+        }
+
+        FrameBuffer frameBuffer = new FrameBuffer();
+        Keyboard keyboard = new Keyboard();
+        Program program = new Program(args[0]);
+        Chip8 chip = new Chip8(program, frameBuffer, keyboard);
+        chip.setClockSpeed(clockSpeed);
+        chip.setFusion(fusion);
+
+        SpeedProfiles profiles = null;
+        ClockGovernor governor = null;
+        if (governorBounds != null) {
+            profiles = new SpeedProfiles();
+            governor = ClockGovernor.parse(governorBounds, profiles.getSpeed(program.hash(), clockSpeed));
+            chip.setGovernor(governor);
+        }
+
+        FrameRecorder recorder = null;
+        if (recordPath != null) {
+            recorder = FrameRecorder.forPath(recordPath, 10, filter, FrameBuffer.ON_COLOR, FrameBuffer.OFF_COLOR);
+            frameBuffer.addListener(recorder);
+            recorder.start();
+        }
+
+        long readyTime = System.nanoTime();
+
+        long cycleCount = 0;
+        int frame = 0;
+        for (; frame < frames && !chip.isHalted(); frame++)
+            cycleCount += chip.runFrame();
+
+        long endTime = System.nanoTime();
+        System.out.println("First instruction after " + (readyTime - startTime) / 1_000_000 + " milliseconds");
+        System.out.println("Executed " + cycleCount + " cycles in " + frame + " frames, "
+                + (endTime - readyTime) / 1_000_000 + " milliseconds");
+
+        if (fusion)
+            System.out.println(chip.getSuperinstructions().report());
+        if (recorder != null)
+            recorder.stop();
+        if (governor != null) {
+            profiles.setSpeed(program.hash(), governor.getClockSpeed());
+            System.out.println("Learned clock speed " + governor.getClockSpeed() + " Hz");
+        }
+    }
+}
@@ -18,13 +18,20 @@ package de.loisel;
 
 public class Keyboard {
     private boolean[] keys;
+    private LatencyProbe latencyProbe;
 
     public Keyboard() {
         keys = new boolean[0x10];
     }
 
+    public synchronized void setLatencyProbe(LatencyProbe latencyProbe) {
+        this.latencyProbe = latencyProbe;
+    }
+
     public synchronized boolean isDown(byte key) {
         key &= 0xF;
+        if (keys[key] && latencyProbe != null)
+            latencyProbe.keyObserved(key);
         return keys[key];
     }
 
@@ -44,13 +51,43 @@ public class Keyboard {
     }
 
     public synchronized void resetKeys() {
-        keys = new boolean[0xf];
+        keys = new boolean[0x10];
+    }
+
+    /**
+     * maps a key of the host keyboard to a chip key, returns 16 if the key is not mapped
+     */
+    public static byte mapKey(char k) {
+        byte key;
+        switch (k) {
+            case '1' -> key = 0x1;
+            case '2' -> key = 0x2;
+            case '3' -> key = 0x3;
+            case '4' -> key = 0xC;
+            case 'q' -> key = 0x4;
+            case 'w' -> key = 0x5;
+            case 'e' -> key = 0x6;
+            case 'r' -> key = 0xD;
+            case 'a' -> key = 0x7;
+            case 's' -> key = 0x8;
+            case 'd' -> key = 0x9;
+            case 'f' -> key = 0xE;
+            case 'y' -> key = 0xA;
+            case 'x' -> key = 0x0;
+            case 'c' -> key = 0xB;
+            case 'v' -> key = 0xF;
+            default -> key = (byte) 16;
+        }
+        return key;
     }
 
     public synchronized byte getNexKey() {
         for (byte i = 0; i < keys.length; i++) {
-            if (keys[i])
+            if (keys[i]) {
+                if (latencyProbe != null)
+                    latencyProbe.keyObserved(i);
                 return i;
+            }
         }
         return (byte)0xFF;
     }
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel;
+
+/**
+ * Measures input-to-photon latency: the time from a key press until the
+ * first frame showing the chip's reaction to it was drawn. A sample starts at
+ * the key press, but only counts once the chip has actually read that key
+ * (through {@link Keyboard#isDown} or {@link Keyboard#getNexKey}). It ends at
+ * the first draw after a changed frame was published following that read.
+ * Constantly animating programs therefore don't produce samples for keys they
+ * ignore. Presses without a reaction within {@link #TIMEOUT_NANOS} are discarded.
+ */
+public class LatencyProbe implements FrameListener {
+    private static final long TIMEOUT_NANOS = 500_000_000L;
+
+    private long pendingInput = -1;
+    private byte pendingKey = -1;
+    private boolean observed = false;
+    private boolean responsePublished = false;
+    private final long[] lastRows = new long[32];
+
+    private long samples = 0;
+    private long totalNanos = 0;
+    private long maxNanos = 0;
+
+    public synchronized void inputReceived(byte key) {
+        if (pendingInput >= 0)
+            return;
+        pendingInput = System.nanoTime();
+        pendingKey = key;
+        observed = false;
+        responsePublished = false;
+    }
+
+    /**
+     * called by the keyboard when the chip reads a key that is down
+     */
+    public synchronized void keyObserved(byte key) {
+        if (pendingInput >= 0 && key == pendingKey)
+            observed = true;
+    }
+
+    @Override
+    public synchronized void framePublished(long[] rows, long frame) {
+        boolean changed = false;
+        for (int y = 0; y < lastRows.length; y++) {
+            changed |= rows[y] != lastRows[y];
+            lastRows[y] = rows[y];
+        }
+        if (changed && observed)
+            responsePublished = true;
+    }
+
+    /**
+     * called after a frame was drawn, renderers always draw the latest published frame
+     */
+    public synchronized void framePresented() {
+        if (pendingInput < 0)
+            return;
+        long latency = System.nanoTime() - pendingInput;
+        if (responsePublished) {
+            samples++;
+            totalNanos += latency;
+            maxNanos = Math.max(maxNanos, latency);
+            pendingInput = -1;
+        } else if (latency > TIMEOUT_NANOS) {
+            pendingInput = -1;
+        }
+    }
+
+    /**
+     * returns a summary of the samples since the last call and resets them
+     */
+    public synchronized String report() {
+        String report;
+        if (samples == 0)
+            report = "Latency: no samples";
+        else
+            report = String.format("Latency: avg %.1f ms, max %.1f ms (%d samples)",
+                    totalNanos / 1e6 / samples, maxNanos / 1e6, samples);
+        samples = 0;
+        totalNanos = 0;
+        maxNanos = 0;
+        return report;
+    }
+}
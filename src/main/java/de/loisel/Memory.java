@@ -16,11 +16,15 @@
 
 package de.loisel;
 
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
 public class Memory {
     public static final int MEMORY_SIZE = 4096;
 
     private byte[] memory;
     private final int fontOffset;
+    private IntConsumer writeListener;
 
     public Memory() {
         this(0x050);
@@ -43,6 +47,24 @@ public class Memory {
         int addr = Short.toUnsignedInt(address);
         addr %= MEMORY_SIZE;
         memory[addr] = data;
+        if (writeListener != null)
+            writeListener.accept(addr);
+    }
+
+    /**
+     * draws the rows bytes at address as sprite straight from memory, wrapping
+     * around at the end of memory. returns true on pixel collision
+     */
+    public boolean drawSprite(FrameBuffer frameBuffer, short address, int rows, byte xCord, byte yCord) {
+        int addr = Short.toUnsignedInt(address) % MEMORY_SIZE;
+        return frameBuffer.setSprite(memory, addr, rows, xCord, yCord);
+    }
+
+    /**
+     * the listener gets the address of every write, null removes it
+     */
+    public void setWriteListener(IntConsumer writeListener) {
+        this.writeListener = writeListener;
     }
 
     private void writeFonts() {
@@ -73,6 +95,16 @@ public class Memory {
     public void reset() {
         this.memory = new byte[MEMORY_SIZE];
         this.writeFonts();
+        if (writeListener != null)
+            for (int addr = 0; addr < MEMORY_SIZE; addr++)
+                writeListener.accept(addr);
+    }
+
+    /**
+     * returns the first address where both memories differ, -1 if they are equal
+     */
+    public int mismatch(Memory other) {
+        return Arrays.mismatch(memory, other.memory);
     }
 
     public short font() {
@@ -19,21 +19,17 @@ package de.loisel;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 
 public class Program {
-    private final List<Byte> rawProgram;
+    private final byte[] rawProgram;
 
     public Program(String romFile) {
-        rawProgram = new ArrayList<>();
-
         try (InputStream inputStream = new FileInputStream(romFile)) {
 
-            byte[] data = inputStream.readAllBytes();
-            for(byte byt: data) {
-                rawProgram.add(byt);
-            }
+            rawProgram = inputStream.readAllBytes();
 
         } catch(IOException ex) {
             ex.printStackTrace();
@@ -41,11 +37,22 @@ public class Program {
         }
     }
 
+    public Program(byte[] rawProgram) {
+        this.rawProgram = rawProgram.clone();
+    }
+
     public byte[] getProgram() {
-        byte[] program = new byte[rawProgram.size()];
-        for (int i = 0; i < rawProgram.size(); i++) {
-            program[i] = rawProgram.get(i);
+        return rawProgram.clone();
+    }
+
+    /**
+     * returns the SHA-256 of the program as hex string
+     */
+    public String hash() {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(rawProgram));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
         }
-        return program;
     }
 }
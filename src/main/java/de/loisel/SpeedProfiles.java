@@ -0,0 +1,77 @@
+/*
+ * Copyright 2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Properties;
+
+/**
+ * Remembers the clock speed learned by the {@link ClockGovernor} for every
+ * program, keyed by {@link Program#hash()}.
+ */
+public class SpeedProfiles {
+    private final File file;
+    private final Properties speeds = new Properties();
+
+    public SpeedProfiles() {
+        this(new File(System.getProperty("user.home"), ".chip8/speeds.properties"));
+    }
+
+    public SpeedProfiles(File file) {
+        this.file = file;
+        if (file.isFile()) {
+            try (Reader reader = new FileReader(file)) {
+                speeds.load(reader);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    public synchronized long getSpeed(String programHash, long defaultSpeed) {
+        String speed = speeds.getProperty(programHash);
+        if (speed == null)
+            return defaultSpeed;
+        try {
+            return Long.parseLong(speed.trim());
+        } catch (NumberFormatException ex) {
+            System.out.println("Invalid speed profile for " + programHash + " in " + file + ": " + speed
+                    + ", using " + defaultSpeed + " Hz");
+            return defaultSpeed;
+        }
+    }
+
+    public synchronized void setSpeed(String programHash, long speed) {
+        speeds.setProperty(programHash, Long.toString(speed));
+
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            System.out.println("Cannot create " + dir + ", speed profile not saved");
+            return;
+        }
+        try (Writer writer = new FileWriter(file)) {
+            speeds.store(writer, "learned clock speeds in Hz by program hash");
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
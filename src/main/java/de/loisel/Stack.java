@@ -16,6 +16,8 @@
 
 package de.loisel;
 
+import java.util.Arrays;
+
 public class Stack {
     private static final byte STACK_SIZE = 64;
     private final short[] stack = new short[STACK_SIZE];
@@ -25,6 +27,18 @@ public class Stack {
         return stackPointer;
     }
 
+    public void reset() {
+        Arrays.fill(stack, (short) 0);
+        stackPointer = 0;
+    }
+
+    /**
+     * returns true if both stacks have the same content and pointer
+     */
+    public boolean sameAs(Stack other) {
+        return stackPointer == other.stackPointer && Arrays.equals(stack, other.stack);
+    }
+
     public void push(short addr) {
         stackPointer++;
         if (stackPointer >= STACK_SIZE) // stack overflow
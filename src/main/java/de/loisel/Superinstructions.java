@@ -0,0 +1,149 @@
+/*
+ * Copyright 2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel;
+
+import java.util.Arrays;
+
+/**
+ * Profiles where a program spends its cycles and fuses hot instruction
+ * sequences into superinstructions, which {@link Chip8} then executes with a
+ * single dispatch. The fused instructions are copied when a sequence is
+ * fused, a write to any of them through {@link Memory#write} undoes the fusion.
+ */
+public class Superinstructions {
+    public enum Kind {
+        NONE(0, "-"),
+        LOAD_DRAW(2, "Annn Dxyn"),
+        COUNTER_LOOP(3, "6xkk/7xkk 3xkk/4xkk 1nnn"),
+        TIMER_WAIT(3, "Fx07 3xkk/4xkk 1nnn");
+
+        final int length;
+        private final String pattern;
+
+        Kind(int length, String pattern) {
+            this.length = length;
+            this.pattern = pattern;
+        }
+    }
+
+    private static final int HOT_THRESHOLD = 64;
+    private static final Kind[] KINDS = Kind.values();
+
+    private final Kind[] kinds = new Kind[Memory.MEMORY_SIZE];
+    private final int[] first = new int[Memory.MEMORY_SIZE];
+    private final int[] second = new int[Memory.MEMORY_SIZE];
+    private final int[] third = new int[Memory.MEMORY_SIZE];
+    private final int[] heat = new int[Memory.MEMORY_SIZE];
+
+    private final long[] sites = new long[KINDS.length];
+    private final long[] executions = new long[KINDS.length];
+    private final long[] instructions = new long[KINDS.length];
+    private long invalidations = 0;
+
+    public Superinstructions() {
+        Arrays.fill(kinds, Kind.NONE);
+    }
+
+    public Kind kind(int address) {
+        return kinds[address];
+    }
+
+    public int first(int address) {
+        return first[address];
+    }
+
+    public int second(int address) {
+        return second[address];
+    }
+
+    public int third(int address) {
+        return third[address];
+    }
+
+    /**
+     * counts a dispatch at address and fuses the sequence starting there once it got hot
+     */
+    public void profile(int address, Memory memory) {
+        // stay clear of the end of memory, where the program counter wraps
+        if (++heat[address] != HOT_THRESHOLD || address > Memory.MEMORY_SIZE - 8)
+            return;
+
+        int i1 = word(memory, address);
+        int i2 = word(memory, address + 2);
+        int i3 = word(memory, address + 4);
+        Kind kind = match(i1, i2, i3);
+        if (kind == Kind.NONE)
+            return;
+
+        kinds[address] = kind;
+        first[address] = i1;
+        second[address] = i2;
+        third[address] = i3;
+        sites[kind.ordinal()]++;
+    }
+
+    public void executed(Kind kind, int count) {
+        executions[kind.ordinal()]++;
+        instructions[kind.ordinal()] += count;
+    }
+
+    /**
+     * undoes every fusion that covers the written address
+     */
+    public void invalidate(int address) {
+        for (int start = address - 5; start <= address; start++) {
+            if (start < 0)
+                continue;
+            heat[start] = 0;
+            if (kinds[start] != Kind.NONE && start + 2 * kinds[start].length > address) {
+                kinds[start] = Kind.NONE;
+                invalidations++;
+            }
+        }
+    }
+
+    public String report() {
+        StringBuilder report = new StringBuilder("Superinstructions:");
+        for (Kind kind : KINDS) {
+            if (kind == Kind.NONE)
+                continue;
+            int k = kind.ordinal();
+            report.append(String.format("%n  %-26s %4d sites, %10d runs, %10d instructions, %10d dispatches saved",
+                    kind.pattern, sites[k], executions[k], instructions[k], instructions[k] - executions[k]));
+        }
+        report.append(String.format("%n  %d fusions undone by writes", invalidations));
+        return report.toString();
+    }
+
+    private static Kind match(int i1, int i2, int i3) {
+        int op1 = i1 >>> 12;
+        int op2 = i2 >>> 12;
+        boolean skipThenJump = (op2 == 0x3 || op2 == 0x4) && (i3 >>> 12) == 0x1;
+
+        if (op1 == 0xA && (i2 >>> 12) == 0xD)
+            return Kind.LOAD_DRAW;
+        if ((op1 == 0x6 || op1 == 0x7) && skipThenJump)
+            return Kind.COUNTER_LOOP;
+        if (op1 == 0xF && (i1 & 0xFF) == 0x07 && skipThenJump)
+            return Kind.TIMER_WAIT;
+        return Kind.NONE;
+    }
+
+    private static int word(Memory memory, int address) {
+        return ((memory.fetch((short) address) & 0xFF) << 8) | (memory.fetch((short) (address + 1)) & 0xFF);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel;
+
+import java.util.stream.IntStream;
+
+/**
+ * CPU upscaler for the 64x32 display. Works on bit-packed rows as returned by
+ * {@link FrameBuffer#copyPublished(long[])}, pixel x of a row is bit 63 - x.
+ * <p>
+ * The edge smoothing filters (Scale2x / Scale3x, also known as EPX / AdvMAME3x)
+ * are precomputed into a lookup table from the 3x3 neighbourhood of a pixel to
+ * its factor x factor sub pixels. The smoothed grid is then stretched with
+ * nearest neighbour sampling to the output size. Every output row is rendered
+ * once per grid row and copied, rows are handled in parallel for large outputs.
+ */
+public class Upscaler {
+    public enum Filter {
+        NEAREST(1), SCALE2X(2), SCALE3X(3);
+
+        private final int factor;
+
+        Filter(int factor) {
+            this.factor = factor;
+        }
+    }
+
+    private static final int COLUMNS = 64;
+    private static final int ROWS = 32;
+    private static final int PARALLEL_THRESHOLD = 640 * 320;
+
+    private final int width;
+    private final int height;
+    private final Filter filter;
+    private final int factor;
+    private final int gridWidth;
+    private final int gridHeight;
+    private final int onColor;
+    private final int offColor;
+
+    private final int[] lut;
+    private final int[] columnSource;
+    private final int[] rowStart;
+    private final byte[] grid;
+    private final int[] pixels;
+
+    public Upscaler(int width, int height, Filter filter, int onColor, int offColor) {
+        this.filter = filter;
+        this.factor = filter.factor;
+        this.gridWidth = COLUMNS * factor;
+        this.gridHeight = ROWS * factor;
+        if (width < gridWidth || height < gridHeight)
+            throw new IllegalArgumentException(
+                    "Output " + width + "x" + height + " is smaller than " + gridWidth + "x" + gridHeight);
+
+        this.width = width;
+        this.height = height;
+        this.onColor = onColor;
+        this.offColor = offColor;
+        this.lut = buildLut(filter);
+        this.grid = new byte[gridWidth * gridHeight];
+        this.pixels = new int[width * height];
+
+        this.columnSource = new int[width];
+        for (int x = 0; x < width; x++)
+            columnSource[x] = (int) ((long) x * gridWidth / width);
+
+        // output rows [rowStart[y], rowStart[y + 1]) show grid row y
+        this.rowStart = new int[gridHeight + 1];
+        for (int y = 0; y <= gridHeight; y++)
+            rowStart[y] = (int) (((long) y * height + gridHeight - 1) / gridHeight);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Filter getFilter() {
+        return filter;
+    }
+
+    /**
+     * returns the ARGB output buffer, it is reused by the next call
+     */
+    public int[] upscale(long[] rows) {
+        smooth(rows);
+        if (width * height >= PARALLEL_THRESHOLD)
+            IntStream.range(0, gridHeight).parallel().forEach(this::renderRow);
+        else
+            for (int y = 0; y < gridHeight; y++)
+                renderRow(y);
+        return pixels;
+    }
+
+    private void smooth(long[] rows) {
+        for (int y = 0; y < ROWS; y++) {
+            long up = rows[Math.max(y - 1, 0)];
+            long mid = rows[y];
+            long down = rows[Math.min(y + 1, ROWS - 1)];
+            long upLeft = left(up), upRight = right(up);
+            long midLeft = left(mid), midRight = right(mid);
+            long downLeft = left(down), downRight = right(down);
+
+            for (int x = 0; x < COLUMNS; x++) {
+                int shift = 63 - x;
+                int neighbourhood = (int) (
+                        ((upLeft >>> shift) & 1) << 8 | ((up >>> shift) & 1) << 7 | ((upRight >>> shift) & 1) << 6
+                      | ((midLeft >>> shift) & 1) << 5 | ((mid >>> shift) & 1) << 4 | ((midRight >>> shift) & 1) << 3
+                      | ((downLeft >>> shift) & 1) << 2 | ((down >>> shift) & 1) << 1 | ((downRight >>> shift) & 1));
+                int sub = lut[neighbourhood];
+
+                int cell = y * factor * gridWidth + x * factor;
+                for (int sy = 0; sy < factor; sy++)
+                    for (int sx = 0; sx < factor; sx++)
+                        grid[cell + sy * gridWidth + sx] = (byte) ((sub >>> (sy * factor + sx)) & 1);
+            }
+        }
+    }
+
+    private void renderRow(int gridY) {
+        int start = rowStart[gridY];
+        int end = rowStart[gridY + 1];
+        if (start >= end)
+            return;
+
+        int gridOffset = gridY * gridWidth;
+        int offset = start * width;
+        for (int x = 0; x < width; x++)
+            pixels[offset + x] = grid[gridOffset + columnSource[x]] != 0 ? onColor : offColor;
+        for (int y = start + 1; y < end; y++)
+            System.arraycopy(pixels, offset, pixels, y * width, width);
+    }
+
+    /**
+     * neighbour to the left of every pixel, the border repeats itself
+     */
+    private static long left(long row) {
+        return (row >>> 1) | (row & Long.MIN_VALUE);
+    }
+
+    /**
+     * neighbour to the right of every pixel, the border repeats itself
+     */
+    private static long right(long row) {
+        return (row << 1) | (row & 1);
+    }
+
+    /**
+     * maps a 3x3 neighbourhood (A B C / D E F / G H I, A is bit 8) to the
+     * sub pixels of E, sub pixel (sx, sy) is bit sy * factor + sx
+     */
+    private static int[] buildLut(Filter filter) {
+        int[] lut = new int[512];
+        for (int n = 0; n < lut.length; n++) {
+            boolean a = (n & 0x100) != 0, b = (n & 0x080) != 0, c = (n & 0x040) != 0;
+            boolean d = (n & 0x020) != 0, e = (n & 0x010) != 0, f = (n & 0x008) != 0;
+            boolean g = (n & 0x004) != 0, h = (n & 0x002) != 0, i = (n & 0x001) != 0;
+
+            boolean[] sub = switch (filter) {
+                case NEAREST -> new boolean[] { e };
+                case SCALE2X -> new boolean[] {
+                        d == b && b != f && d != h ? d : e,
+                        b == f && b != d && f != h ? f : e,
+                        d == h && d != b && h != f ? d : e,
+                        h == f && d != h && b != f ? f : e
+                };
+                case SCALE3X -> {
+                    boolean db = d == b && b != f && d != h;
+                    boolean bf = b == f && b != d && f != h;
+                    boolean dh = d == h && d != b && h != f;
+                    boolean hf = h == f && d != h && b != f;
+                    yield new boolean[] {
+                            db ? d : e,
+                            (db && e != c) || (bf && e != a) ? b : e,
+                            bf ? f : e,
+                            (db && e != g) || (dh && e != a) ? d : e,
+                            e,
+                            (bf && e != i) || (hf && e != c) ? f : e,
+                            dh ? d : e,
+                            (dh && e != i) || (hf && e != g) ? h : e,
+                            hf ? f : e
+                    };
+                }
+            };
+
+            for (int s = 0; s < sub.length; s++)
+                if (sub[s])
+                    lut[n] |= 1 << s;
+        }
+        return lut;
+    }
+}
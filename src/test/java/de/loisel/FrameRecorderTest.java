@@ -0,0 +1,113 @@
+/*
+ * Copyright 2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * GIF frames only carry the rectangle that changed, stacking them has to give
+ * the same pictures as the full PNG frames of the same run.
+ */
+class FrameRecorderTest {
+    private static final int FRAMES = 80;
+    private static final int SCALE = 4;
+
+    @TempDir
+    File dir;
+
+    @Test
+    void gifMatchesPngWithNearest() throws IOException {
+        assertGifMatchesPng(Upscaler.Filter.NEAREST);
+    }
+
+    @Test
+    void gifMatchesPngWithScale2x() throws IOException {
+        assertGifMatchesPng(Upscaler.Filter.SCALE2X);
+    }
+
+    @Test
+    void gifMatchesPngWithScale3x() throws IOException {
+        assertGifMatchesPng(Upscaler.Filter.SCALE3X);
+    }
+
+    private void assertGifMatchesPng(Upscaler.Filter filter) throws IOException {
+        File gif = new File(dir, filter + ".gif");
+        File png = new File(dir, filter.toString());
+        record(FrameRecorder.forPath(gif.getPath(), SCALE, filter, FrameBuffer.ON_COLOR, FrameBuffer.OFF_COLOR));
+        record(FrameRecorder.forPath(png.getPath(), SCALE, filter, FrameBuffer.ON_COLOR, FrameBuffer.OFF_COLOR));
+
+        File[] pngs = png.listFiles();
+        Arrays.sort(pngs);
+        assertEquals(FRAMES, pngs.length);
+
+        try (ImageInputStream input = ImageIO.createImageInputStream(gif)) {
+            ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+            reader.setInput(input);
+            assertEquals(FRAMES, reader.getNumImages(true));
+
+            BufferedImage canvas = new BufferedImage(64 * SCALE, 32 * SCALE, BufferedImage.TYPE_INT_RGB);
+            for (int i = 0; i < FRAMES; i++) {
+                IIOMetadataNode root = (IIOMetadataNode) reader.getImageMetadata(i)
+                        .getAsTree("javax_imageio_gif_image_1.0");
+                IIOMetadataNode descriptor = (IIOMetadataNode) root.getElementsByTagName("ImageDescriptor").item(0);
+                canvas.getGraphics().drawImage(reader.read(i),
+                        Integer.parseInt(descriptor.getAttribute("imageLeftPosition")),
+                        Integer.parseInt(descriptor.getAttribute("imageTopPosition")), null);
+
+                BufferedImage expected = ImageIO.read(pngs[i]);
+                for (int y = 0; y < canvas.getHeight(); y++)
+                    for (int x = 0; x < canvas.getWidth(); x++)
+                        assertEquals(expected.getRGB(x, y), canvas.getRGB(x, y),
+                                filter + " frame " + i + " pixel " + x + "," + y);
+            }
+            reader.dispose();
+        }
+    }
+
+    /**
+     * publishes the same frames to every recorder: small sprites toggled at
+     * random places, the edges included, every frame differs from the last
+     */
+    private static void record(FrameRecorder recorder) {
+        FrameBuffer frameBuffer = new FrameBuffer();
+        frameBuffer.addListener(recorder);
+        recorder.start();
+
+        Random random = new Random(42);
+        byte[] sprite = new byte[3];
+        for (int frame = 0; frame < FRAMES; frame++) {
+            random.nextBytes(sprite);
+            sprite[0] |= 0x80;
+            frameBuffer.setSprite(sprite, 0, sprite.length, (byte) random.nextInt(64), (byte) random.nextInt(32));
+            frameBuffer.publish();
+        }
+        recorder.stop();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2022 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Dxyn draws straight from memory into the packed rows, these tests pin down
+ * that it allocates nothing and still clips and wraps like before.
+ */
+class SpriteDrawTest {
+    // V0 = 8, V1 = 16, then loop I = font '0', draw 5 rows at V0/V1
+    private static final byte[] DRAW_LOOP = {
+            0x60, 0x08, 0x61, 0x10, (byte) 0xA0, 0x50, (byte) 0xD0, 0x15, 0x12, 0x04
+    };
+
+    @Test
+    void drawAllocatesNothing() {
+        assertNoAllocation(false);
+    }
+
+    @Test
+    void fusedDrawAllocatesNothing() {
+        assertNoAllocation(true);
+    }
+
+    private static void assertNoAllocation(boolean fusion) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        Chip8 chip = new Chip8(new Program(DRAW_LOOP), new FrameBuffer(), new Keyboard());
+        chip.setFusion(fusion);
+        // warm up past the fusion threshold and let the JIT settle
+        for (int i = 0; i < 200_000; i++)
+            chip.step(16);
+
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < 200_000; i++)
+            chip.step(16);
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+        assertEquals(0, allocated, "bytes allocated by 200000 dispatches of the draw loop");
+        if (fusion)
+            assertEquals(Superinstructions.Kind.LOAD_DRAW, chip.getSuperinstructions().kind(0x204));
+    }
+
+    @Test
+    void clipsAtRightEdge() {
+        FrameBuffer frameBuffer = new FrameBuffer();
+        frameBuffer.setSprite(new byte[] {(byte) 0xFF}, 0, 1, (byte) 60, (byte) 0);
+
+        long[] rows = published(frameBuffer);
+        assertEquals(0xFL, rows[0]);
+        assertEquals(0L, rows[1]);
+    }
+
+    @Test
+    void clipsAtBottomEdge() {
+        FrameBuffer frameBuffer = new FrameBuffer();
+        byte[] sprite = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80};
+        frameBuffer.setSprite(sprite, 0, sprite.length, (byte) 0, (byte) 30);
+
+        long[] rows = published(frameBuffer);
+        assertEquals(1L << 63, rows[30]);
+        assertEquals(1L << 63, rows[31]);
+        assertEquals(0L, rows[0]);
+        assertEquals(0L, rows[1]);
+    }
+
+    @Test
+    void wrapsStartCoordinates() {
+        FrameBuffer frameBuffer = new FrameBuffer();
+        frameBuffer.setSprite(new byte[] {(byte) 0x80}, 0, 1, (byte) 70, (byte) 33);
+
+        long[] rows = published(frameBuffer);
+        assertEquals(1L << (63 - 6), rows[1]);
+    }
+
+    @Test
+    void reportsCollisionAndErases() {
+        FrameBuffer frameBuffer = new FrameBuffer();
+        byte[] sprite = {(byte) 0xF0};
+        assertFalse(frameBuffer.setSprite(sprite, 0, 1, (byte) 62, (byte) 5));
+        assertTrue(frameBuffer.setSprite(sprite, 0, 1, (byte) 62, (byte) 5));
+
+        assertArrayEquals(new long[32], published(frameBuffer));
+    }
+
+    @Test
+    void wrapsAtEndOfMemory() {
+        Memory memory = new Memory();
+        memory.write((short) 0xFFE, (byte) 0x81);
+        memory.write((short) 0xFFF, (byte) 0x42);
+        memory.write((short) 0x000, (byte) 0x24);
+
+        FrameBuffer frameBuffer = new FrameBuffer();
+        memory.drawSprite(frameBuffer, (short) 0xFFE, 3, (byte) 0, (byte) 0);
+
+        long[] rows = published(frameBuffer);
+        assertEquals(0x81L << 56, rows[0]);
+        assertEquals(0x42L << 56, rows[1]);
+        assertEquals(0x24L << 56, rows[2]);
+        assertEquals(0L, rows[3]);
+    }
+
+    private static long[] published(FrameBuffer frameBuffer) {
+        frameBuffer.publish();
+        long[] rows = new long[32];
+        frameBuffer.copyPublished(rows);
+        return rows;
+    }
+}